@@ -36,14 +36,24 @@ import java.util.ArrayList;
  * combinations available:
  *
  * (A)
+ * (A:Label)
+ * (A@123)
+ * (@123)
  * [R]
  * [R:TYPE]
+ * [R@45:TYPE]
  * (A)-[R]->(B)
  * (A)-[:TYPE]->(B)
  * (A)-[R:TYPE]->(B)
  * (A)<=|Index|
  * [R]<=|Index|
  * [R:TYPE]<=|Index|
+ * (A)<?|Index|
+ * [R:TYPE]<?|Index|
+ *
+ * An '@' followed by an ID addresses an existing entity directly. The
+ * last two bind entities returned by an index query rather than an
+ * exact index entry.
  */
 public class Descriptor {
 
@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.RelationshipIndex;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Stands in for a legacy index which does not exist yet while a
+ * {@link Neo4jGraphProxy} explains a subgraph, so that explaining never
+ * creates an index. Entries added are held in memory only for as long as
+ * the explanation runs and are seen by exact lookups, matching values as
+ * strings as an exact index does. Queries find nothing, and a query rule
+ * run against a stand-in is reported as unexplained.
+ */
+class ExplainIndex<T extends PropertyContainer> implements Index<T> {
+
+	private final GraphDatabaseService graphDB;
+	private final String name;
+	private final Class<T> entityType;
+	private final Map<String, LinkedHashSet<T>> entries = new HashMap<String, LinkedHashSet<T>>();
+
+	ExplainIndex(GraphDatabaseService graphDB, String name, Class<T> entityType) {
+		this.graphDB = graphDB;
+		this.name = name;
+		this.entityType = entityType;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public Class<T> getEntityType() {
+		return this.entityType;
+	}
+
+	@Override
+	public IndexHits<T> get(String key, Object value) {
+		LinkedHashSet<T> entities = this.entries.get(entryKey(key, value));
+		return new Hits<T>(entities == null ? Collections.<T>emptyList() : new ArrayList<T>(entities));
+	}
+
+	@Override
+	public IndexHits<T> query(String key, Object queryOrQueryObject) {
+		return new Hits<T>(Collections.<T>emptyList());
+	}
+
+	@Override
+	public IndexHits<T> query(Object queryOrQueryObject) {
+		return new Hits<T>(Collections.<T>emptyList());
+	}
+
+	@Override
+	public boolean isWriteable() {
+		return true;
+	}
+
+	@Override
+	public GraphDatabaseService getGraphDatabase() {
+		return this.graphDB;
+	}
+
+	@Override
+	public void add(T entity, String key, Object value) {
+		// array values are indexed element by element
+		if (value != null && value.getClass().isArray()) {
+			for (int i = 0; i < Array.getLength(value); i++) {
+				add(entity, key, Array.get(value, i));
+			}
+			return;
+		}
+		String entryKey = entryKey(key, value);
+		LinkedHashSet<T> entities = this.entries.get(entryKey);
+		if (entities == null) {
+			entities = new LinkedHashSet<T>();
+			this.entries.put(entryKey, entities);
+		}
+		entities.add(entity);
+	}
+
+	@Override
+	public void remove(T entity, String key, Object value) {
+		LinkedHashSet<T> entities = this.entries.get(entryKey(key, value));
+		if (entities != null) {
+			entities.remove(entity);
+		}
+	}
+
+	@Override
+	public void remove(T entity, String key) {
+		String prefix = key + '\u0000';
+		for (Map.Entry<String, LinkedHashSet<T>> entry : this.entries.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				entry.getValue().remove(entity);
+			}
+		}
+	}
+
+	@Override
+	public void remove(T entity) {
+		for (LinkedHashSet<T> entities : this.entries.values()) {
+			entities.remove(entity);
+		}
+	}
+
+	@Override
+	public void delete() {
+		this.entries.clear();
+	}
+
+	@Override
+	public T putIfAbsent(T entity, String key, Object value) {
+		LinkedHashSet<T> entities = this.entries.get(entryKey(key, value));
+		if (entities != null && !entities.isEmpty()) {
+			return entities.iterator().next();
+		}
+		add(entity, key, value);
+		return null;
+	}
+
+	private static String entryKey(String key, Object value) {
+		return key + '\u0000' + value;
+	}
+
+	/**
+	 * Stand-in for a relationship index, as for a node index.
+	 */
+	static class Relationships extends ExplainIndex<Relationship> implements RelationshipIndex {
+
+		Relationships(GraphDatabaseService graphDB, String name) {
+			super(graphDB, name, Relationship.class);
+		}
+
+		@Override
+		public IndexHits<Relationship> get(String key, Object valueOrNull, Node startNodeOrNull, Node endNodeOrNull) {
+			ArrayList<Relationship> relationships = new ArrayList<Relationship>();
+			for (Relationship relationship : get(key, valueOrNull)) {
+				if ((startNodeOrNull == null || startNodeOrNull.equals(relationship.getStartNode())) &&
+					(endNodeOrNull == null || endNodeOrNull.equals(relationship.getEndNode()))) {
+					relationships.add(relationship);
+				}
+			}
+			return new Hits<Relationship>(relationships);
+		}
+
+		@Override
+		public IndexHits<Relationship> query(String key, Object queryOrQueryObjectOrNull, Node startNodeOrNull, Node endNodeOrNull) {
+			return new Hits<Relationship>(Collections.<Relationship>emptyList());
+		}
+
+		@Override
+		public IndexHits<Relationship> query(Object queryOrQueryObjectOrNull, Node startNodeOrNull, Node endNodeOrNull) {
+			return new Hits<Relationship>(Collections.<Relationship>emptyList());
+		}
+
+	}
+
+	private static class Hits<T> implements IndexHits<T> {
+
+		private final List<T> entities;
+		private final Iterator<T> iterator;
+
+		Hits(List<T> entities) {
+			this.entities = entities;
+			this.iterator = entities.iterator();
+		}
+
+		@Override
+		public int size() {
+			return this.entities.size();
+		}
+
+		@Override
+		public void close() { }
+
+		@Override
+		public T getSingle() {
+			if (this.entities.size() > 1) {
+				throw new NoSuchElementException("More than one entity indexed");
+			}
+			return this.entities.isEmpty() ? null : this.entities.get(0);
+		}
+
+		@Override
+		public float currentScore() {
+			return Float.NaN;
+		}
+
+		@Override
+		public Hits<T> iterator() {
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.iterator.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return this.iterator.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
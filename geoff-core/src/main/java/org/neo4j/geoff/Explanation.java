@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff;
+
+/**
+ * What a single rule did when run by a {@link Neo4jGraphProxy} set to
+ * explain rather than apply subgraphs: whether it created entities or only
+ * matched existing ones, how many entities its names were bound to and
+ * the reads it needed along the way. Rules which bind names to many
+ * entities or scan many relationships are the ones to look at before
+ * running a load for real.
+ */
+public class Explanation {
+
+	private final int ruleNumber;
+	private final Rule rule;
+	private final long entitiesBound;
+	private final Statistics statistics;
+
+	Explanation(int ruleNumber, Rule rule, long entitiesBound, Statistics statistics) {
+		this.ruleNumber = ruleNumber;
+		this.rule = rule;
+		this.entitiesBound = entitiesBound;
+		this.statistics = statistics;
+	}
+
+	public int getRuleNumber() {
+		return this.ruleNumber;
+	}
+
+	public Rule getRule() {
+		return this.rule;
+	}
+
+	/**
+	 * @return true if the rule created any entities, false if it only
+	 * matched existing ones
+	 */
+	public boolean isCreate() {
+		return getEntitiesCreated() > 0;
+	}
+
+	public long getEntitiesCreated() {
+		return this.statistics.get(Statistics.NODES_CREATED) + this.statistics.get(Statistics.RELATIONSHIPS_CREATED);
+	}
+
+	/**
+	 * @return the number of entities bound to the names within the rule
+	 * once it had been run
+	 */
+	public long getEntitiesBound() {
+		return this.entitiesBound;
+	}
+
+	public long getRelationshipsScanned() {
+		return this.statistics.get(Statistics.RELATIONSHIPS_SCANNED);
+	}
+
+	/**
+	 * @return the number of relationships a cascading delete by the rule
+	 * would have deleted along with its nodes
+	 */
+	public long getCascadeRelationships() {
+		return this.statistics.get(Statistics.CASCADE_RELATIONSHIPS_COUNTED);
+	}
+
+	/**
+	 * @return false if the rule queried an index which the subgraph was
+	 * to create, so that entities added to it were not found and the rule
+	 * may bind fewer entities than it would when applied
+	 */
+	public boolean isExplained() {
+		return this.statistics.get(Statistics.INDEX_QUERIES_UNEXPLAINED) == 0;
+	}
+
+	/**
+	 * @return the number of index lookups and queries made, including
+	 * those for rules looked ahead over
+	 */
+	public long getIndexLookups() {
+		return this.statistics.get(Statistics.INDEX_LOOKUPS)
+			+ this.statistics.get(Statistics.INDEX_BATCH_QUERIES)
+			+ this.statistics.get(Statistics.INDEX_COMPOSITE_QUERIES)
+			+ this.statistics.get(Statistics.INDEX_QUERIES)
+			+ this.statistics.get(Statistics.EDGE_INDEX_LOOKUPS);
+	}
+
+	/**
+	 * @return all counters changed by the rule
+	 */
+	public Statistics getStatistics() {
+		return this.statistics;
+	}
+
+	@Override
+	public String toString() {
+		String explanation = String.format(
+			"%d: %s (%s, %d bound, %d scanned, %d lookups",
+			this.ruleNumber, this.rule, isCreate() ? "create" : "match",
+			this.entitiesBound, getRelationshipsScanned(), getIndexLookups()
+		);
+		if (getCascadeRelationships() > 0) {
+			explanation += ", " + getCascadeRelationships() + " cascaded";
+		}
+		if (!isExplained()) {
+			explanation += ", query of new index unexplained";
+		}
+		return explanation + ")";
+	}
+
+}
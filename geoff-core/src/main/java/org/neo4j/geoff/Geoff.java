@@ -23,6 +23,7 @@ import org.neo4j.geoff.except.SubgraphError;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.PropertyContainer;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -74,13 +75,37 @@ public class Geoff {
 		Map<String, ? extends PropertyContainer> params
 	)
 	throws SubgraphError
+	{
+		return mergeIntoNeo4j(subgraph, graphDB, params, null);
+	}
+
+	/**
+	 * {@link #mergeIntoNeo4j(Subgraph, GraphDatabaseService, Map) Merge} a
+	 * {@link Subgraph} into a graph database, returning only the named
+	 * entities asked for. Bulk loads may ask for none.
+	 *
+	 * @param subgraph the {@link Subgraph} to merge
+	 * @param graphDB the database into which to merge
+	 * @param params the input parameters for the merge operation
+	 * @param outputNames the names to output, empty for none or null for all
+	 * @return the output parameters asked for
+	 * @throws SubgraphError if there is an error processing the {@link
+	 * Subgraph} provided
+	 */
+	public static Map<String, PropertyContainer> mergeIntoNeo4j(
+		Subgraph subgraph,
+		GraphDatabaseService graphDB,
+		Map<String, ? extends PropertyContainer> params,
+		Collection<String> outputNames
+	)
+	throws SubgraphError
 	{
 		Neo4jGraphProxy graph = new Neo4jGraphProxy(graphDB);
 		if (params != null) {
 			graph.inputParams(new HashMap<String, PropertyContainer>(params));
 		}
 		graph.merge(subgraph);
-		return graph.outputParams();
+		return graph.outputParams(outputNames);
 	}
 
 	/**
@@ -102,13 +127,37 @@ public class Geoff {
 		Map<String, ? extends PropertyContainer> params
 	)
 	throws SubgraphError
+	{
+		return insertIntoNeo4j(subgraph, graphDB, params, null);
+	}
+
+	/**
+	 * {@link #insertIntoNeo4j(Subgraph, GraphDatabaseService, Map) Insert} a
+	 * {@link Subgraph} into a graph database, returning only the named
+	 * entities asked for. Bulk loads may ask for none.
+	 *
+	 * @param subgraph the {@link Subgraph} to insert
+	 * @param graphDB the database into which to insert
+	 * @param params the input parameters for the insert operation
+	 * @param outputNames the names to output, empty for none or null for all
+	 * @return the output parameters asked for
+	 * @throws SubgraphError if there is an error processing the {@link
+	 * Subgraph} provided
+	 */
+	public static Map<String, PropertyContainer> insertIntoNeo4j(
+		Subgraph subgraph,
+		GraphDatabaseService graphDB,
+		Map<String, ? extends PropertyContainer> params,
+		Collection<String> outputNames
+	)
+	throws SubgraphError
 	{
 		Neo4jGraphProxy graph = new Neo4jGraphProxy(graphDB);
 		if (params != null) {
 			graph.inputParams(new HashMap<String, PropertyContainer>(params));
 		}
 		graph.insert(subgraph);
-		return graph.outputParams();
+		return graph.outputParams(outputNames);
 	}
 
 	/**
@@ -130,13 +179,37 @@ public class Geoff {
 		Map<String, ? extends PropertyContainer> params
 	)
 	throws SubgraphError
+	{
+		return deleteFromNeo4j(subgraph, graphDB, params, null);
+	}
+
+	/**
+	 * {@link #deleteFromNeo4j(Subgraph, GraphDatabaseService, Map) Delete} a
+	 * {@link Subgraph} from a graph database, returning only the named
+	 * entities asked for. Bulk loads may ask for none.
+	 *
+	 * @param subgraph the {@link Subgraph} to delete
+	 * @param graphDB the database from which to delete
+	 * @param params the input parameters for the delete operation
+	 * @param outputNames the names to output, empty for none or null for all
+	 * @return the output parameters asked for
+	 * @throws SubgraphError if there is an error processing the {@link
+	 * Subgraph} provided
+	 */
+	public static Map<String, PropertyContainer> deleteFromNeo4j(
+		Subgraph subgraph,
+		GraphDatabaseService graphDB,
+		Map<String, ? extends PropertyContainer> params,
+		Collection<String> outputNames
+	)
+	throws SubgraphError
 	{
 		Neo4jGraphProxy graph = new Neo4jGraphProxy(graphDB);
 		if (params != null) {
 			graph.inputParams(new HashMap<String, PropertyContainer>(params));
 		}
 		graph.delete(subgraph);
-		return graph.outputParams();
+		return graph.outputParams(outputNames);
 	}
 
 }
@@ -0,0 +1,350 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff;
+
+import org.neo4j.geoff.except.GroupCommitError;
+import org.neo4j.geoff.except.SubgraphError;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces small merge requests arriving from concurrent callers into
+ * shared transactions, amortising commit overhead across each group. Every
+ * request is processed by its own {@link Neo4jGraphProxy} so names never
+ * leak between requests and each caller receives only its own output
+ * parameters. If any request within a group fails, the whole group is
+ * rolled back and every caller receives a {@link GroupCommitError}
+ * identifying the failed requests; requests queued behind a failure within
+ * the same group are not attempted. Requests are not retried on deadlock,
+ * since a deadlock leaves the shared transaction fit only for rollback.
+ *
+ * Example usage:
+ * <pre>
+ * {@code
+ * GroupCommitExecutor executor = new GroupCommitExecutor(graphDB, 5, 100);
+ * Map<String, PropertyContainer> out = executor.merge(subgraph, null);
+ * }
+ * </pre>
+ */
+public class GroupCommitExecutor {
+
+	/**
+	 * A single merge request awaiting execution as part of a group
+	 */
+	private static class Request {
+
+		private final Subgraph subgraph;
+		private final Map<String, ? extends PropertyContainer> params;
+		private final Collection<String> outputNames;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private Map<String, PropertyContainer> result;
+		private SubgraphError error;
+
+		private Request(
+			Subgraph subgraph,
+			Map<String, ? extends PropertyContainer> params,
+			Collection<String> outputNames
+		) {
+			this.subgraph = subgraph;
+			this.params = params;
+			this.outputNames = outputNames;
+		}
+
+	}
+
+	private final GraphDatabaseService graphDB;
+	private final long windowMillis;
+	private final int maxGroupSize;
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final Thread worker;
+	private final KernelEventHandler shutdownHandler;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Start a new executor against the supplied GraphDatabaseService. The
+	 * executor is shut down automatically along with the database.
+	 *
+	 * @param graphDB the database into which to merge
+	 * @param windowMillis how long to wait for further requests after the
+	 *                     first in a group arrives
+	 * @param maxGroupSize maximum number of requests to share a transaction
+	 */
+	public GroupCommitExecutor(GraphDatabaseService graphDB, long windowMillis, int maxGroupSize) {
+		if (maxGroupSize < 1) {
+			throw new IllegalArgumentException("Group size must be at least 1");
+		}
+		this.graphDB = graphDB;
+		this.windowMillis = windowMillis;
+		this.maxGroupSize = maxGroupSize;
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "geoff-group-commit");
+		this.worker.setDaemon(true);
+		this.worker.start();
+		this.shutdownHandler = new KernelEventHandler() {
+
+			@Override
+			public void beforeShutdown() {
+				shutdown();
+			}
+
+			@Override
+			public void kernelPanic(ErrorState error) { }
+
+			@Override
+			public Object getResource() {
+				return null;
+			}
+
+			@Override
+			public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+				return ExecutionOrder.DOESNT_MATTER;
+			}
+
+		};
+		graphDB.registerKernelEventHandler(this.shutdownHandler);
+	}
+
+	/**
+	 * Merge a {@link Subgraph} into the database as part of the next group
+	 * commit, blocking until that group has been committed or rolled back.
+	 *
+	 * @param subgraph the {@link Subgraph} to merge
+	 * @param params the input parameters for the merge operation
+	 * @return the output parameters from the merge operation
+	 * @throws SubgraphError if any request within the group failed
+	 */
+	public Map<String, PropertyContainer> merge(
+		Subgraph subgraph,
+		Map<String, ? extends PropertyContainer> params
+	)
+	throws SubgraphError
+	{
+		return merge(subgraph, params, null);
+	}
+
+	/**
+	 * Merge a {@link Subgraph} into the database as part of the next group
+	 * commit, returning only the named entities asked for.
+	 *
+	 * @param subgraph the {@link Subgraph} to merge
+	 * @param params the input parameters for the merge operation
+	 * @param outputNames the names to output, empty for none or null for all
+	 * @return the output parameters asked for
+	 * @throws SubgraphError if any request within the group failed
+	 */
+	public Map<String, PropertyContainer> merge(
+		Subgraph subgraph,
+		Map<String, ? extends PropertyContainer> params,
+		Collection<String> outputNames
+	)
+	throws SubgraphError
+	{
+		if (!this.running) {
+			throw new IllegalStateException("Group commit executor has been shut down");
+		}
+		Request request = new Request(subgraph, params, outputNames);
+		this.queue.add(request);
+		if (!this.running && this.queue.remove(request)) {
+			// shut down between the check above and the request being queued
+			throw new IllegalStateException("Group commit executor has been shut down");
+		}
+		boolean interrupted = false;
+		while (request.done.getCount() > 0) {
+			try {
+				request.done.await();
+			} catch (InterruptedException e) {
+				// the request is already queued, so see it through
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (request.error != null) {
+			throw request.error;
+		}
+		return request.result;
+	}
+
+	/**
+	 * Stop accepting requests; any requests still queued are failed.
+	 */
+	public void shutdown() {
+		if (this.running) {
+			this.running = false;
+			this.worker.interrupt();
+			try {
+				this.graphDB.unregisterKernelEventHandler(this.shutdownHandler);
+			} catch (IllegalStateException e) {
+				// handler already removed during database shutdown
+			}
+		}
+	}
+
+	private void work() {
+		while (this.running) {
+			List<Request> group = new ArrayList<Request>(this.maxGroupSize);
+			try {
+				group.add(this.queue.take());
+				long deadline = System.currentTimeMillis() + this.windowMillis;
+				while (group.size() < this.maxGroupSize) {
+					long wait = deadline - System.currentTimeMillis();
+					Request next = wait > 0 ? this.queue.poll(wait, TimeUnit.MILLISECONDS) : this.queue.poll();
+					if (next == null) {
+						break;
+					}
+					group.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutting down; fall through to execute whatever was collected
+			}
+			if (!group.isEmpty()) {
+				try {
+					execute(group);
+				} catch (Throwable e) {
+					// never leave callers waiting on a group which could not be run
+					fail(group, e);
+				}
+			}
+		}
+		ArrayList<Request> abandoned = new ArrayList<Request>();
+		this.queue.drainTo(abandoned);
+		for (Request request : abandoned) {
+			request.error = new SubgraphError(0, "Group commit executor has been shut down");
+			request.done.countDown();
+		}
+	}
+
+	private void execute(List<Request> group) {
+		int size = group.size();
+		Neo4jGraphProxy[] proxies = new Neo4jGraphProxy[size];
+		Throwable[] causes = new Throwable[size];
+		int failures = 0;
+		Throwable commitFailure = null;
+		Transaction tx = this.graphDB.beginTx();
+		try {
+			// a failure marks the shared transaction rollback-only, so stop
+			// there rather than blame later requests for the same failure
+			for (int i = 0; i < size && failures == 0; i++) {
+				Request request = group.get(i);
+				proxies[i] = new Neo4jGraphProxy(this.graphDB);
+				proxies[i].setDeferMergeLockRelease(true);
+				// a retry within the shared transaction could never succeed
+				proxies[i].setRetries(0, 0);
+				try {
+					if (request.params != null) {
+						proxies[i].inputParams(new HashMap<String, PropertyContainer>(request.params));
+					}
+					proxies[i].merge(request.subgraph);
+				} catch (SubgraphError e) {
+					causes[i] = e;
+					failures++;
+				} catch (RuntimeException e) {
+					causes[i] = e;
+					failures++;
+				}
+			}
+			if (failures == 0) {
+				tx.success();
+			} else {
+				tx.failure();
+			}
+		} finally {
+			try {
+				tx.finish();
+			} catch (RuntimeException e) {
+				commitFailure = e;
+			}
+			// merge locks must outlive the shared transaction, not each request
+			for (Neo4jGraphProxy proxy : proxies) {
+				if (proxy != null) {
+					proxy.releaseMergeLocks();
+				}
+			}
+		}
+		if (failures == 0 && commitFailure == null) {
+			for (int i = 0; i < size; i++) {
+				group.get(i).result = proxies[i].outputParams(group.get(i).outputNames);
+			}
+		} else {
+			int[] failedPositions;
+			if (failures == 0) {
+				// the commit itself failed, taking every request with it
+				failedPositions = new int[size];
+				for (int i = 0; i < size; i++) {
+					failedPositions[i] = i;
+					causes[i] = commitFailure;
+				}
+			} else {
+				failedPositions = new int[failures];
+				for (int i = 0, j = 0; i < size; i++) {
+					if (causes[i] != null) {
+						failedPositions[j++] = i;
+					}
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				group.get(i).error = new GroupCommitError(i, failedPositions, causes[i]);
+			}
+		}
+		for (Request request : group) {
+			request.done.countDown();
+		}
+	}
+
+	/**
+	 * Fail every request within a group which has not already been
+	 * released, for when the group as a whole could not be run.
+	 */
+	private void fail(List<Request> group, Throwable cause) {
+		int size = group.size();
+		int[] failedPositions = new int[size];
+		for (int i = 0; i < size; i++) {
+			failedPositions[i] = i;
+		}
+		for (int i = 0; i < size; i++) {
+			Request request = group.get(i);
+			if (request.done.getCount() > 0) {
+				request.error = new GroupCommitError(i, failedPositions, cause);
+				request.done.countDown();
+			}
+		}
+	}
+
+}
@@ -19,16 +19,41 @@
  */
 package org.neo4j.geoff;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.geoff.except.MergeLockTimeoutException;
 import org.neo4j.geoff.except.SubgraphError;
+import org.neo4j.geoff.store.AdjacencyCache;
 import org.neo4j.geoff.store.EntityStore;
+import org.neo4j.geoff.store.EntityToken;
+import org.neo4j.geoff.store.IndexEntryCache;
 import org.neo4j.geoff.store.IndexToken;
+import org.neo4j.geoff.store.NameDictionary;
 import org.neo4j.geoff.store.NodeToken;
 import org.neo4j.geoff.store.RelationshipToken;
+import org.neo4j.geoff.store.Token;
+import org.neo4j.geoff.util.BloomFilter;
+import org.neo4j.geoff.util.IdArray;
+import org.neo4j.geoff.util.LockStripes;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.RelationshipIndex;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.tooling.GlobalGraphOperations;
 
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of {@link GraphProxy} for use with Neo4j.
@@ -38,24 +63,82 @@ import java.util.*;
 public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 
 	/**
-	 * Used for ordering relationships by ID within a TreeSet
+	 * Whole-subgraph operations supported by the proxy
 	 */
-	private static class RelationshipComparator implements Comparator<Relationship> {
+	private static enum Operation { MERGE, INSERT, DELETE }
 
-		@Override
-		public int compare(Relationship rel1, Relationship rel2) {
-			long id1 = rel1.getId();
-			long id2 = rel2.getId();
-			return id1 < id2 ? -1 : id1 > id2 ? 1 : 0;
-		}
+	/**
+	 * Guard merges against concurrent creation of the same entity; shared
+	 * by all proxies on the same database since they may run on different
+	 * threads, but kept apart between databases.
+	 */
+	private static final WeakHashMap<GraphDatabaseService, LockStripes> MERGE_LOCKS =
+		new WeakHashMap<GraphDatabaseService, LockStripes>();
 
+	private static LockStripes mergeLocksFor(GraphDatabaseService graphDB) {
+		synchronized (MERGE_LOCKS) {
+			LockStripes stripes = MERGE_LOCKS.get(graphDB);
+			if (stripes == null) {
+				stripes = new LockStripes(1024);
+				MERGE_LOCKS.put(graphDB, stripes);
+			}
+			return stripes;
+		}
 	}
 
 	private final GraphDatabaseService graphDB;
+	private final LockStripes mergeLockStripes;
 	private final EntityStore<NodeToken, Node> nodeStore;
 	private final EntityStore<RelationshipToken, Relationship> relationshipStore;
+	private final Statistics statistics = new Statistics();
 
 	private int ruleNumber = 0;
+	private boolean patch = false;
+
+	private boolean lockOrdering = false;
+	private int maxRetries = 0;
+	private long retryBackoffMillis = 10;
+	private long mergeLockTimeoutMillis = 5000;
+
+	private final ArrayList<ReentrantLock> mergeLocks = new ArrayList<ReentrantLock>();
+	private boolean deferMergeLockRelease = false;
+	/**
+	 * Key under which relationships are entered into the edge index, with
+	 * the relationship type as value
+	 */
+	public static final String EDGE_INDEX_KEY = "type";
+
+	private final HashMap<String, List<String>> labelKeys = new HashMap<String, List<String>>();
+
+	// symbol tables, resolved once per proxy rather than once per rule
+	private final HashMap<String, Index<Node>> nodeIndexesByName = new HashMap<String, Index<Node>>();
+	private final HashMap<String, RelationshipIndex> relationshipIndexesByName = new HashMap<String, RelationshipIndex>();
+	private final HashMap<String, RelationshipType> typesByName = new HashMap<String, RelationshipType>();
+	private final HashMap<String, Label> labelsByName = new HashMap<String, Label>();
+	private final HashMap<String, Boolean> exactIndexes = new HashMap<String, Boolean>();
+
+	private final IndexEntryCache indexEntryCache = new IndexEntryCache();
+	private final HashMap<String, BloomFilter> bloomFilters = new HashMap<String, BloomFilter>();
+	private int indexLookAhead = 0;
+	private int indexHitLimit = 0;
+	private boolean compositeIndexKeys = false;
+	private NameDictionary nameDictionary = null;
+	private final ArrayList<String> removedNodeNames = new ArrayList<String>();
+	private final ArrayList<String> removedRelationshipNames = new ArrayList<String>();
+	private IdArray deletedNodeIds = new IdArray();
+	private IdArray deletedRelationshipIds = new IdArray();
+	private String edgeIndexName = null;
+	private int maxPendingPropertyWrites = 0;
+	private int cascadeBatchSize = 0;
+	private boolean commitCascadeBatches = false;
+	private int cascadeDeletions = 0;
+	private int batchesCommitted = 0;
+	private Transaction transaction = null;
+	private boolean explain = false;
+	private final ArrayList<Explanation> explanations = new ArrayList<Explanation>();
+	private final LinkedHashMap<PropertyContainer, PendingProperties> pendingProperties =
+		new LinkedHashMap<PropertyContainer, PendingProperties>();
+	private AdjacencyCache adjacencyCache = new AdjacencyCache(100000);
 
 	/**
 	 * Set up a new proxy for the supplied GraphDatabaseService
@@ -64,8 +147,310 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 	 */
 	public Neo4jGraphProxy(GraphDatabaseService graphDB) {
 		this.graphDB = graphDB;
-		this.nodeStore = new EntityStore<NodeToken, Node>();
-		this.relationshipStore = new EntityStore<RelationshipToken, Relationship>();
+		this.mergeLockStripes = mergeLocksFor(graphDB);
+		this.nodeStore = EntityStore.forNodes(graphDB);
+		this.relationshipStore = EntityStore.forRelationships(graphDB);
+	}
+
+	/**
+	 * Lock all entities which a subgraph is known to touch before applying
+	 * any of its rules, taking nodes in ID order followed by relationships
+	 * in ID order. Concurrent subgraphs with overlapping entities then queue
+	 * up behind one another rather than deadlocking. Entities resolved
+	 * are those passed in as parameters and those found through index rules.
+	 *
+	 * @param lockOrdering true to lock entities up front in ID order
+	 */
+	public void setLockOrdering(boolean lockOrdering) {
+		this.lockOrdering = lockOrdering;
+	}
+
+	/**
+	 * Set the number of times a subgraph is retried after the database
+	 * reports a deadlock. Each retry rolls back, restores the names bound
+	 * before the subgraph was started and waits for a random backoff period
+	 * which doubles with each attempt. To allow this, the earlier binding
+	 * of each name a subgraph changes is journalled while it runs. Retries
+	 * only make sense where this proxy owns the transaction rather than
+	 * joining one already running.
+	 *
+	 * @param maxRetries maximum number of retries, zero to disable
+	 * @param retryBackoffMillis initial upper bound of the backoff period
+	 */
+	public void setRetries(int maxRetries, long retryBackoffMillis) {
+		this.maxRetries = maxRetries;
+		this.retryBackoffMillis = retryBackoffMillis;
+	}
+
+	/**
+	 * Set how long a merge waits for other transactions merging the same
+	 * keys. The merge locks of a subgraph are all taken, in a fixed order,
+	 * before any of its rules run, so a timeout means another transaction
+	 * held a key for that long rather than a deadlock. It is reported as a
+	 * {@link MergeLockTimeoutException}, which is not retried.
+	 *
+	 * @param mergeLockTimeoutMillis maximum wait in milliseconds
+	 */
+	public void setMergeLockTimeout(long mergeLockTimeoutMillis) {
+		this.mergeLockTimeoutMillis = mergeLockTimeoutMillis;
+	}
+
+	/**
+	 * Set how many relationships may be held in the adjacency cache. Once a
+	 * node's relationships in one direction have been read in full, they are
+	 * held until the transaction ends so that further matches against the
+	 * same node do not read them from the database again.
+	 *
+	 * @param adjacencyCacheSize maximum number of relationships held, zero to disable
+	 */
+	public void setAdjacencyCacheSize(int adjacencyCacheSize) {
+		this.adjacencyCache = new AdjacencyCache(adjacencyCacheSize);
+	}
+
+	/**
+	 * Maintain a relationship index of every relationship created through
+	 * this proxy, keyed by type and queryable by start and end node, and
+	 * use it to find existing relationships when merging a typed
+	 * relationship between known nodes instead of scanning either node's
+	 * relationships. The index must cover all relationships of the types
+	 * merged in this way, so relationships which already exist, or which
+	 * are created other than through a proxy maintaining the same index,
+	 * must first be entered into it by {@link #buildEdgeIndex(int)};
+	 * otherwise they will not be matched and duplicates will be created.
+	 *
+	 * @param edgeIndexName name of the relationship index, or null to scan
+	 */
+	public void setEdgeIndex(String edgeIndexName) {
+		this.edgeIndexName = edgeIndexName;
+	}
+
+	/**
+	 * Enter every relationship in the database into the edge index set by
+	 * {@link #setEdgeIndex(String)}, replacing any entries already held.
+	 * Relationships are indexed in batches, each committed in its own
+	 * transaction, so this should be run before any merges relying on the
+	 * index and while no other writers are creating relationships.
+	 *
+	 * @param batchSize number of relationships indexed per transaction
+	 * @return number of relationships indexed
+	 */
+	public long buildEdgeIndex(int batchSize) {
+		if (this.edgeIndexName == null) {
+			throw new IllegalStateException("No edge index has been set");
+		}
+		long count = 0;
+		Transaction tx = graphDB.beginTx();
+		try {
+			RelationshipIndex index = edgeIndex();
+			for (Relationship relationship : GlobalGraphOperations.at(graphDB).getAllRelationships()) {
+				index.remove(relationship, EDGE_INDEX_KEY);
+				index.add(relationship, EDGE_INDEX_KEY, relationship.getType().name());
+				count++;
+				if (count % batchSize == 0) {
+					tx.success();
+					tx.finish();
+					tx = graphDB.beginTx();
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		return count;
+	}
+
+	/**
+	 * Defer property writes, collecting the properties given to each entity
+	 * by successive rules and writing them once per entity. Pending writes
+	 * are flushed before the transaction commits, before nodes are looked
+	 * up by property and whenever the number of entities with pending
+	 * writes reaches the limit given.
+	 *
+	 * @param maxPendingPropertyWrites maximum number of entities with pending
+	 *                                 writes, zero to write immediately
+	 */
+	public void setDeferredPropertyWrites(int maxPendingPropertyWrites) {
+		this.maxPendingPropertyWrites = maxPendingPropertyWrites;
+	}
+
+	/**
+	 * Set a Bloom filter holding the entries of a node index, so that index
+	 * merges on keys which the filter rules out go straight to creating a
+	 * new node without looking in the index. Creation still goes through
+	 * putIfAbsent, for a composite key on its first pair before the key is
+	 * looked up again without the filter, so a filter missing some entries
+	 * costs a wasted node rather than a duplicate. Entries added by this
+	 * proxy are added to the
+	 * filter, which may be shared between proxies. Entries are formed by
+	 * {@link #bloomFilterKey(String, Object)}.
+	 *
+	 * @param indexName name of the node index
+	 * @param filter filter of index entries, or null to remove
+	 */
+	public void setNodeIndexBloomFilter(String indexName, BloomFilter filter) {
+		setBloomFilter("N:" + indexName, filter);
+	}
+
+	/**
+	 * Set a Bloom filter holding the entries of a relationship index, as for
+	 * {@link #setNodeIndexBloomFilter(String, BloomFilter)}.
+	 *
+	 * @param indexName name of the relationship index
+	 * @param filter filter of index entries, or null to remove
+	 */
+	public void setRelationshipIndexBloomFilter(String indexName, BloomFilter filter) {
+		setBloomFilter("R:" + indexName, filter);
+	}
+
+	private void setBloomFilter(String name, BloomFilter filter) {
+		if (filter == null) {
+			bloomFilters.remove(name);
+		} else {
+			bloomFilters.put(name, filter);
+		}
+	}
+
+	/**
+	 * Look ahead over runs of index merge rules, resolving the keys of up
+	 * to the given number of rules against each index in a single query
+	 * before applying them. Rules are still applied one by one and in order,
+	 * using the entries fetched.
+	 *
+	 * @param indexLookAhead number of rules to look ahead over, zero to disable
+	 */
+	public void setIndexLookAhead(int indexLookAhead) {
+		this.indexLookAhead = Math.min(indexLookAhead, BooleanQuery.getMaxClauseCount());
+	}
+
+	/**
+	 * Limit the number of index hits bound by an index merge rule, for
+	 * where only the existence of an entry, or a single match, matters.
+	 * No more hits than this are read from the index.
+	 *
+	 * @param indexHitLimit maximum number of hits bound, zero for all
+	 */
+	public void setIndexHitLimit(int indexHitLimit) {
+		this.indexHitLimit = indexHitLimit;
+	}
+
+	/**
+	 * Treat the key:value pairs of an index merge rule as a single
+	 * composite key, binding only entities indexed under all of them. The
+	 * pairs are resolved together, as the entities found by an exact
+	 * lookup of every pair, and, where nothing matches, a single entity is
+	 * created and indexed under every pair. The first pair in key order is
+	 * added through putIfAbsent and, if another entity already holds it,
+	 * the composite key is looked up again before the new entity is kept.
+	 * By default each pair is merged on its own.
+	 *
+	 * @param compositeIndexKeys true to merge index entries by composite key
+	 */
+	public void setCompositeIndexKeys(boolean compositeIndexKeys) {
+		this.compositeIndexKeys = compositeIndexKeys;
+	}
+
+	/**
+	 * Limit the number of entity names held on the heap by this proxy, for
+	 * loads which name more entities than the heap can hold. Beyond the
+	 * limit, names bound to a single entity are held in memory-mapped
+	 * temporary files, separately for nodes and for relationships.
+	 *
+	 * @param maxHeapNames maximum number of names of each kind held on the heap
+	 * @param spillDirectory directory for temporary files, or null for the
+	 *                       system default
+	 */
+	public void setEntityStoreHeapBudget(int maxHeapNames, File spillDirectory) {
+		nodeStore.setHeapBudget(maxHeapNames, spillDirectory);
+		relationshipStore.setHeapBudget(maxHeapNames, spillDirectory);
+	}
+
+	/**
+	 * Attach a persistent dictionary of entity names, so that names bound
+	 * by earlier loads can be referred to without an index lookup. Names
+	 * not otherwise bound are looked up in the dictionary before any rule
+	 * is applied, and the names bound by each committed transaction are
+	 * recorded in it, together with the entities deleted so that their
+	 * names are forgotten. Names are not recorded by a proxy whose
+	 * transaction is nested within another.
+	 *
+	 * @param nameDictionary the dictionary, or null to detach
+	 */
+	public void setNameDictionary(NameDictionary nameDictionary) {
+		this.nameDictionary = nameDictionary;
+	}
+
+	/**
+	 * Delete the nodes of node rules within a delete together with their
+	 * relationships and legacy index entries, instead of failing on nodes
+	 * which still have relationships. Relationships are read and deleted
+	 * in batches of the size given, so that memory use stays bounded
+	 * however many relationships a node has. Where batches are committed,
+	 * each batch of deletions is committed in a transaction of its own;
+	 * the delete is then no longer atomic, and is not retried on deadlock
+	 * once a batch has been committed. Within an enclosing transaction,
+	 * batches are committed along with it. Batches cannot be committed
+	 * while explaining.
+	 *
+	 * @param batchSize number of entities deleted per batch, zero to disable
+	 *                  cascading
+	 * @param commitBatches true to commit each batch in its own transaction
+	 * @throws IllegalStateException if committing batches while explaining
+	 */
+	public void setCascadeDelete(int batchSize, boolean commitBatches) {
+		if (commitBatches && this.explain) {
+			throw new IllegalStateException("Cannot commit cascade delete batches while explaining");
+		}
+		this.cascadeBatchSize = batchSize;
+		this.commitCascadeBatches = commitBatches;
+	}
+
+	/**
+	 * Explain subgraphs rather than applying them. Each rule is run as
+	 * usual, but within a transaction which is always rolled back, and an
+	 * {@link Explanation} of what it did is kept. Nothing is committed,
+	 * nothing is recorded in a name dictionary or added to a Bloom filter,
+	 * and names bound while explaining are forgotten afterwards, leaving
+	 * those bound before each subgraph. Legacy indexes which do not exist
+	 * yet are not created, but stood in for by empty ones held in memory.
+	 * Explaining is not free of side effects on other transactions,
+	 * though: it takes the same merge locks and database write locks as
+	 * applying the subgraph would, holding them until its transaction is
+	 * rolled back, so it may wait for or hold up concurrent writers.
+	 * Cascading deletes are only counted while explaining, leaving their
+	 * nodes in place for later rules, and cascade delete batches cannot
+	 * be committed. Query rules against an index the subgraph was to
+	 * create find nothing and are reported as unexplained.
+	 *
+	 * @param explain true to explain subgraphs rather than apply them
+	 * @throws IllegalStateException if cascade delete batches are committed
+	 */
+	public void setExplain(boolean explain) {
+		if (explain && this.commitCascadeBatches) {
+			throw new IllegalStateException("Cannot explain while committing cascade delete batches");
+		}
+		this.explain = explain;
+		// drop any stand-in indexes left by an explanation which failed
+		nodeIndexesByName.clear();
+		relationshipIndexesByName.clear();
+	}
+
+	/**
+	 * Retrieve explanations of the rules run by this proxy while
+	 * explaining, in the order run.
+	 *
+	 * @return one explanation per rule
+	 */
+	public List<Explanation> getExplanations() {
+		return Collections.unmodifiableList(this.explanations);
+	}
+
+	/**
+	 * Retrieve counters describing the work carried out by this proxy.
+	 *
+	 * @return statistics for this proxy
+	 */
+	public Statistics getStatistics() {
+		return this.statistics;
 	}
 
 	@Override
@@ -96,273 +481,1106 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 	@Override
 	public Map<String, PropertyContainer> outputParams() {
 		Map<String, PropertyContainer> entities = new HashMap<String, PropertyContainer>();
-		for (Map.Entry<String, Node> entry : nodeStore.toMap().entrySet()) {
-			entities.put('(' + entry.getKey() + ')', entry.getValue());
-		}
-		for (Map.Entry<String, Relationship> entry : relationshipStore.toMap().entrySet()) {
-			entities.put('[' + entry.getKey() + ']', entry.getValue());
+		// entities are held by ID and must be looked up within a transaction
+		Transaction tx = graphDB.beginTx();
+		try {
+			for (Map.Entry<String, Node> entry : nodeStore.toMap().entrySet()) {
+				entities.put('(' + entry.getKey() + ')', entry.getValue());
+			}
+			for (Map.Entry<String, Relationship> entry : relationshipStore.toMap().entrySet()) {
+				entities.put('[' + entry.getKey() + ']', entry.getValue());
+			}
+			tx.success();
+		} finally {
+			tx.finish();
 		}
 		return entities;
 	}
 
-	@Override
-	public void merge(Subgraph subgraph) throws SubgraphError {
+	/**
+	 * Retrieve only the named entities asked for, in the same form as
+	 * {@link #outputParams()}, without building a map of every name bound.
+	 * Names may be given as (A), [R] or just A, and as (A.2) to pick out
+	 * a single position.
+	 *
+	 * @param names the names to retrieve, empty for none or null for all
+	 * @return map of names and associated entities
+	 */
+	public Map<String, PropertyContainer> outputParams(Collection<String> names) {
+		if (names == null) {
+			return outputParams();
+		}
+		Map<String, PropertyContainer> entities = new HashMap<String, PropertyContainer>(names.size());
+		if (names.isEmpty()) {
+			return entities;
+		}
 		Transaction tx = graphDB.beginTx();
 		try {
-			for (Rule rule : subgraph) {
-				this.ruleNumber++;
-				String pattern = rule.getDescriptor().getPattern();
-				if ("N".equals(pattern)) {
-					createOrUpdateNodes(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData()
-					);
-				} else if ("R".equals(pattern)) {
-					mergeRelationships(
-						NodeToken.anon(),
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						NodeToken.anon(),
-						rule.getData(),
-						false
-					);
-				} else if ("N-R->N".equals(pattern)) {
-					mergeRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(2),
-						(NodeToken) rule.getDescriptor().getToken(5),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R-N".equals(pattern)) {
-					mergeRelationships(
-						(NodeToken) rule.getDescriptor().getToken(5),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R->N".equals(pattern)) {
-					mergeRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(6),
-						rule.getData(),
-						true
-					);
-				} else if ("N^I".equals(pattern)) {
-					mergeIndexEntries(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
-				} else if ("R^I".equals(pattern)) {
-					mergeIndexEntries(
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
-				} else {
-					throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+			for (String name : names) {
+				boolean isNodeKey = name.startsWith("(") && name.endsWith(")");
+				boolean isRelKey = name.startsWith("[") && name.endsWith("]");
+				String key = isNodeKey || isRelKey ? name.substring(1, name.length() - 1) : name;
+				if (!isRelKey) {
+					for (Map.Entry<String, Long> entry : nodeStore.toIdMap(new NodeToken(key)).entrySet()) {
+						entities.put('(' + entry.getKey() + ')', graphDB.getNodeById(entry.getValue()));
+					}
+				}
+				if (!isNodeKey) {
+					for (Map.Entry<String, Long> entry : relationshipStore.toIdMap(new RelationshipToken(key)).entrySet()) {
+						entities.put('[' + entry.getKey() + ']', graphDB.getRelationshipById(entry.getValue()));
+					}
 				}
 			}
 			tx.success();
 		} finally {
 			tx.finish();
 		}
+		return entities;
+	}
+
+	/**
+	 * Retrieve a read-only view of the named entities held by this proxy,
+	 * keyed as for {@link #outputParams()}. Looking up or counting names
+	 * goes straight to the names held, and a lookup resolves only the
+	 * entity asked for; only iterating over the view builds the full set
+	 * of output parameters. The view reflects any later changes made
+	 * through this proxy.
+	 *
+	 * @return view of names and associated entities
+	 */
+	public Map<String, PropertyContainer> outputView() {
+		return new AbstractMap<String, PropertyContainer>() {
+
+			@Override
+			public PropertyContainer get(Object key) {
+				long id = outputId(key);
+				if (id < 0) {
+					return null;
+				}
+				Transaction tx = graphDB.beginTx();
+				try {
+					PropertyContainer entity;
+					if (((String) key).startsWith("(")) {
+						entity = graphDB.getNodeById(id);
+					} else {
+						entity = graphDB.getRelationshipById(id);
+					}
+					tx.success();
+					return entity;
+				} finally {
+					tx.finish();
+				}
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return outputId(key) >= 0;
+			}
+
+			@Override
+			public int size() {
+				return (int) Math.min(Integer.MAX_VALUE, nodeStore.size() + relationshipStore.size());
+			}
+
+			@Override
+			public Set<Entry<String, PropertyContainer>> entrySet() {
+				return Collections.unmodifiableMap(outputParams()).entrySet();
+			}
+
+		};
+	}
+
+	/**
+	 * Find the ID of the entity held under a name in the form used by
+	 * {@link #outputParams()}, such as (A), (A.2) or [R].
+	 *
+	 * @return the entity ID, or -1 if no entity is held under the name
+	 */
+	private long outputId(Object key) {
+		if (!(key instanceof String) || ((String) key).length() < 3) {
+			return -1;
+		}
+		String name = (String) key;
+		String inner = name.substring(1, name.length() - 1);
+		Long id = null;
+		if (name.startsWith("(") && name.endsWith(")")) {
+			id = nodeStore.toIdMap(new NodeToken(inner)).get(inner);
+		} else if (name.startsWith("[") && name.endsWith("]")) {
+			id = relationshipStore.toIdMap(new RelationshipToken(inner)).get(inner);
+		}
+		return id == null ? -1 : id;
+	}
+
+	@Override
+	public void merge(Subgraph subgraph) throws SubgraphError {
+		execute(Operation.MERGE, subgraph);
 	}
 
 	@Override
 	public void insert(Subgraph subgraph) throws SubgraphError {
-		Transaction tx = graphDB.beginTx();
+		execute(Operation.INSERT, subgraph);
+	}
+
+	@Override
+	public void delete(Subgraph subgraph) throws SubgraphError {
+		execute(Operation.DELETE, subgraph.reverse());
+	}
+
+	/**
+	 * Apply all rules within a subgraph, retrying on deadlock if so configured.
+	 */
+	private void execute(Operation operation, Subgraph subgraph) throws SubgraphError {
+		int firstRuleNumber = this.ruleNumber;
+		int firstExplanation = this.explanations.size();
+		// names bound by earlier subgraphs must survive a retry, so the
+		// names this subgraph changes are journalled, which also tells
+		// which names to record in a name dictionary
+		boolean journalled = this.maxRetries > 0 || this.explain || this.nameDictionary != null;
+		if (journalled) {
+			nodeStore.mark();
+			relationshipStore.mark();
+		}
+		int attempt = 0;
 		try {
-			for (Rule rule : subgraph) {
-				this.ruleNumber++;
-				String pattern = rule.getDescriptor().getPattern();
-				if ("N".equals(pattern)) {
-					createOrUpdateNodes(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData()
-					);
-				} else if ("R".equals(pattern)) {
-					insertRelationships(
-						NodeToken.anon(),
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						NodeToken.anon(),
-						rule.getData(),
-						false
-					);
-				} else if ("N-R->N".equals(pattern)) {
-					insertRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(2),
-						(NodeToken) rule.getDescriptor().getToken(5),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R-N".equals(pattern)) {
-					insertRelationships(
-						(NodeToken) rule.getDescriptor().getToken(5),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R->N".equals(pattern)) {
-					insertRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(6),
-						rule.getData(),
-						true
-					);
-				} else if ("N^I".equals(pattern)) {
-					insertIndexEntries(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
-				} else if ("R^I".equals(pattern)) {
-					insertIndexEntries(
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
-				} else {
-					throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+			while (true) {
+				try {
+					attempt(operation, subgraph);
+					if (this.explain) {
+						// nothing bound by an explained subgraph was kept
+						rewind(firstRuleNumber);
+					}
+					return;
+				} catch (DeadlockDetectedException e) {
+					statistics.increment(Statistics.DEADLOCKS);
+					// batches already committed cannot be undone by starting again
+					if (attempt >= this.maxRetries || this.batchesCommitted > 0) {
+						throw e;
+					}
+					attempt++;
+					statistics.increment(Statistics.RETRIES);
+					backOff(attempt, e);
+					// start again from the same position as the first attempt
+					rewind(firstRuleNumber);
+					this.explanations.subList(firstExplanation, this.explanations.size()).clear();
 				}
 			}
-			tx.success();
 		} finally {
-			tx.finish();
+			if (journalled) {
+				nodeStore.unmark();
+				relationshipStore.unmark();
+			}
 		}
 	}
 
-	@Override
-	public void delete(Subgraph subgraph) throws SubgraphError {
-		Transaction tx = graphDB.beginTx();
+	/**
+	 * Forget everything bound since the given rule, restoring the names
+	 * bound before it from the store journals.
+	 */
+	private void rewind(int firstRuleNumber) {
+		this.ruleNumber = firstRuleNumber;
+		nodeStore.reset();
+		relationshipStore.reset();
+		// indexes created since may have been rolled back
+		nodeIndexesByName.clear();
+		relationshipIndexesByName.clear();
+	}
+
+	private void attempt(Operation operation, Subgraph subgraph) throws SubgraphError {
+		this.transaction = graphDB.beginTx();
+		this.cascadeDeletions = 0;
+		this.batchesCommitted = 0;
+		adjacencyCache.clear();
+		indexEntryCache.clear();
 		try {
-			for (Rule rule : subgraph.reverse()) {
+			bindIdReferences(subgraph);
+			bindDictionaryNames(subgraph);
+			if (operation == Operation.MERGE) {
+				lockMergeKeys(subgraph);
+			}
+			if (this.lockOrdering) {
+				lockInOrder(this.transaction, subgraph);
+			}
+			List<Rule> rules = subgraph.getRules();
+			int prefetchedTo = 0;
+			for (int r = 0; r < rules.size(); r++) {
+				Rule rule = rules.get(r);
+				if (operation == Operation.MERGE && this.indexLookAhead > 0 && r >= prefetchedTo && isIndexRule(rule)) {
+					prefetchedTo = Math.min(r + this.indexLookAhead, rules.size());
+					prefetchIndexEntries(rules.subList(r, prefetchedTo));
+				}
 				this.ruleNumber++;
-				String pattern = rule.getDescriptor().getPattern();
-				if ("N".equals(pattern)) {
-					deleteNodes(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData()
-					);
-				} else if ("R".equals(pattern)) {
-					deleteRelationships(
-						NodeToken.anon(),
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						NodeToken.anon(),
-						rule.getData(),
-						false
-					);
-				} else if ("N-R->N".equals(pattern)) {
-					deleteRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(2),
-						(NodeToken) rule.getDescriptor().getToken(5),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R-N".equals(pattern)) {
-					deleteRelationships(
-						(NodeToken) rule.getDescriptor().getToken(5),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(0),
-						rule.getData(),
-						false
-					);
-				} else if ("N<-R->N".equals(pattern)) {
-					deleteRelationships(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(RelationshipToken) rule.getDescriptor().getToken(3),
-						(NodeToken) rule.getDescriptor().getToken(6),
-						rule.getData(),
-						true
-					);
-				} else if ("N^I".equals(pattern)) {
-					deleteIndexEntries(
-						(NodeToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
-				} else if ("R^I".equals(pattern)) {
-					deleteIndexEntries(
-						(RelationshipToken) rule.getDescriptor().getToken(0),
-						(IndexToken) rule.getDescriptor().getToken(2),
-						rule.getData()
-					);
+				this.patch = rule.isPatch();
+				Statistics before = this.explain ? new Statistics(statistics) : null;
+				if (isQueryRule(rule)) {
+					// query rules only bind, whatever the operation
+					queryRule(rule);
 				} else {
-					throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+					switch (operation) {
+					case MERGE:
+						mergeRule(rule);
+						break;
+					case INSERT:
+						insertRule(rule);
+						break;
+					case DELETE:
+						deleteRule(rule);
+						break;
+					}
+				}
+				if (this.explain) {
+					this.explanations.add(new Explanation(
+						this.ruleNumber, rule, entitiesBound(rule), statistics.since(before)
+					));
 				}
 			}
-			tx.success();
+			flushProperties();
+			if (this.explain) {
+				this.transaction.failure();
+			} else {
+				this.transaction.success();
+			}
 		} finally {
-			tx.finish();
+			pendingProperties.clear();
+			try {
+				this.transaction.finish();
+			} finally {
+				this.transaction = null;
+				adjacencyCache.clear();
+				indexEntryCache.clear();
+				if (!this.deferMergeLockRelease) {
+					releaseMergeLocks();
+				}
+			}
+		}
+		// only reached once the transaction has been committed
+		if (!this.explain) {
+			recordNames();
 		}
 	}
 
-	private Set<Node> createOrUpdateNodes(NodeToken a, Map<String, Object> properties)
-	{
-		HashSet<Node> nodes = new HashSet<Node>();
-		if (nodeStore.contains(a)) {
-			nodes.addAll(nodeStore.get(a));
-		} else {
-			Node node = this.graphDB.createNode();
-			nodeStore.put(a, node);
-			nodes.add(node);
+	/**
+	 * Count the entities bound to the names within a rule.
+	 */
+	private long entitiesBound(Rule rule) {
+		long count = 0;
+		Descriptor descriptor = rule.getDescriptor();
+		for (int i = 0; i < descriptor.getPattern().length(); i++) {
+			Token token = descriptor.getToken(i);
+			if (token instanceof NodeToken && nodeStore.contains((NodeToken) token)) {
+				count += nodeStore.get((NodeToken) token).size();
+			} else if (token instanceof RelationshipToken && relationshipStore.contains((RelationshipToken) token)) {
+				count += relationshipStore.get((RelationshipToken) token).size();
+			}
 		}
-		setProperties(nodes, properties);
-		return nodes;
+		return count;
 	}
 
 	/**
-	 * Create relationships described by the supplied tokens. Should only be
-	 * called if the RelationshipToken <code>r</code> does not describe a
-	 * pre-existing relationship.
-	 *
-	 * @param a start nodes
-	 * @param r relationships
-	 * @param b end nodes
-	 * @param properties relationship properties
-	 * @param bothWays bi-directional relationship
-	 * @return
-	 * @throws SubgraphError
+	 * Hold merge locks beyond the end of this proxy's own transaction, for
+	 * use when that transaction is nested within a longer running one. The
+	 * caller must then invoke {@link #releaseMergeLocks()} once the outer
+	 * transaction has finished, from the same thread.
 	 */
-	private Set<Relationship> createRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
-		throws SubgraphError
-	{
-		assert !relationshipStore.contains(r);
-		if (!r.hasType()) {
-			throw new SubgraphError(this.ruleNumber, "Cannot create untyped relationships");
+	void setDeferMergeLockRelease(boolean deferMergeLockRelease) {
+		this.deferMergeLockRelease = deferMergeLockRelease;
+	}
+
+	void releaseMergeLocks() {
+		for (ReentrantLock lock : this.mergeLocks) {
+			lock.unlock();
 		}
-		RelationshipType type = DynamicRelationshipType.withName(r.getType());
-		HashSet<Relationship> relationships = new HashSet<Relationship>();
-		Set<Node> startNodes = createOrUpdateNodes(a, null);
-		Set<Node> endNodes = createOrUpdateNodes(b, null);
-		for (Node startNode : startNodes) {
-			for (Node endNode : endNodes) {
-				relationships.add(startNode.createRelationshipTo(endNode, type));
-				if (bothWays) {
-					relationships.add(endNode.createRelationshipTo(startNode, type));
-				}
-			}
+		this.mergeLocks.clear();
+	}
+
+	private void backOff(int attempt, DeadlockDetectedException cause) {
+		// full jitter: wait anywhere up to an exponentially growing ceiling
+		long ceiling = this.retryBackoffMillis << Math.min(attempt - 1, 16);
+		long wait = (long) (Math.random() * ceiling);
+		statistics.add(Statistics.RETRY_BACKOFF_MILLIS, wait);
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw cause;
 		}
-		setProperties(relationships, properties);
-		relationshipStore.put(r, relationships);
-		return relationships;
 	}
 
-	private Set<Relationship> updateRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
-	{
-		assert relationshipStore.contains(r);
-		Set<Relationship> relationships = relationshipStore.get(r);
-		boolean aIsDefined = nodeStore.contains(a);
-		boolean bIsDefined = nodeStore.contains(b);
-		Set<Node> startNodes = aIsDefined ? nodeStore.get(a) : new HashSet<Node>(relationships.size());
-		Set<Node> endNodes = bIsDefined ? nodeStore.get(b) : new HashSet<Node>(relationships.size());
-		RelationshipType type = r.hasType() ? DynamicRelationshipType.withName(r.getType()) : null;
+	/**
+	 * Resolve the entities which a subgraph will touch and take write locks
+	 * on them in a consistent order: nodes by ID, then relationships by ID.
+	 */
+	private void lockInOrder(Transaction tx, Subgraph subgraph) {
+		TreeMap<Long, Node> nodes = new TreeMap<Long, Node>();
+		TreeMap<Long, Relationship> relationships = new TreeMap<Long, Relationship>();
+		for (Rule rule : subgraph) {
+			Descriptor descriptor = rule.getDescriptor();
+			String pattern = descriptor.getPattern();
+			for (int i = 0; i < pattern.length(); i++) {
+				Token token = descriptor.getToken(i);
+				if (token instanceof NodeToken) {
+					NodeToken a = (NodeToken) token;
+					if (nodeStore.contains(a)) {
+						for (Node node : nodeStore.get(a)) {
+							nodes.put(node.getId(), node);
+						}
+					} else if (("N^I".equals(pattern)) && rule.getData() != null) {
+						IndexToken index = (IndexToken) descriptor.getToken(2);
+						if (index.hasName() && existsForNodes(index.getName())) {
+							Index<Node> nodeIndex = nodeIndex(index.getName());
+							for (Map.Entry<String, Object> entry : rule.getData().entrySet()) {
+								for (Node node : indexedNodes(nodeIndex, entry.getKey(), entry.getValue())) {
+									nodes.put(node.getId(), node);
+								}
+							}
+						}
+					}
+				} else if (token instanceof RelationshipToken) {
+					RelationshipToken r = (RelationshipToken) token;
+					if (relationshipStore.contains(r)) {
+						for (Relationship relationship : relationshipStore.get(r)) {
+							relationships.put(relationship.getId(), relationship);
+						}
+					} else if (("R^I".equals(pattern)) && rule.getData() != null) {
+						IndexToken index = (IndexToken) descriptor.getToken(2);
+						if (index.hasName() && existsForRelationships(index.getName())) {
+							Index<Relationship> relationshipIndex = relationshipIndex(index.getName());
+							for (Map.Entry<String, Object> entry : rule.getData().entrySet()) {
+								for (Relationship relationship : indexedRelationships(relationshipIndex, entry.getKey(), entry.getValue())) {
+									relationships.put(relationship.getId(), relationship);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		// relationship writes also lock both end nodes
+		for (Relationship relationship : relationships.values()) {
+			for (Node node : relationship.getNodes()) {
+				nodes.put(node.getId(), node);
+			}
+		}
+		for (Node node : nodes.values()) {
+			tx.acquireWriteLock(node);
+		}
+		for (Relationship relationship : relationships.values()) {
+			tx.acquireWriteLock(relationship);
+		}
+		statistics.add(Statistics.LOCKS_ACQUIRED, nodes.size() + relationships.size());
+	}
+
+	private void mergeRule(Rule rule) throws SubgraphError {
+		String pattern = rule.getDescriptor().getPattern();
+		if ("N".equals(pattern)) {
+			mergeNodes(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData()
+			);
+		} else if ("R".equals(pattern)) {
+			mergeRelationships(
+				NodeToken.anon(),
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				NodeToken.anon(),
+				rule.getData(),
+				false
+			);
+		} else if ("N-R->N".equals(pattern)) {
+			mergeRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(2),
+				(NodeToken) rule.getDescriptor().getToken(5),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R-N".equals(pattern)) {
+			mergeRelationships(
+				(NodeToken) rule.getDescriptor().getToken(5),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R->N".equals(pattern)) {
+			mergeRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(6),
+				rule.getData(),
+				true
+			);
+		} else if ("N^I".equals(pattern)) {
+			mergeIndexEntries(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else if ("R^I".equals(pattern)) {
+			mergeIndexEntries(
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else {
+			throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+		}
+	}
+
+	private void insertRule(Rule rule) throws SubgraphError {
+		String pattern = rule.getDescriptor().getPattern();
+		if ("N".equals(pattern)) {
+			createOrUpdateNodes(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData()
+			);
+		} else if ("R".equals(pattern)) {
+			insertRelationships(
+				NodeToken.anon(),
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				NodeToken.anon(),
+				rule.getData(),
+				false
+			);
+		} else if ("N-R->N".equals(pattern)) {
+			insertRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(2),
+				(NodeToken) rule.getDescriptor().getToken(5),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R-N".equals(pattern)) {
+			insertRelationships(
+				(NodeToken) rule.getDescriptor().getToken(5),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R->N".equals(pattern)) {
+			insertRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(6),
+				rule.getData(),
+				true
+			);
+		} else if ("N^I".equals(pattern)) {
+			insertIndexEntries(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else if ("R^I".equals(pattern)) {
+			insertIndexEntries(
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else {
+			throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+		}
+	}
+
+	private void deleteRule(Rule rule) throws SubgraphError {
+		String pattern = rule.getDescriptor().getPattern();
+		if ("N".equals(pattern)) {
+			deleteNodes(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData()
+			);
+		} else if ("R".equals(pattern)) {
+			deleteRelationships(
+				NodeToken.anon(),
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				NodeToken.anon(),
+				rule.getData(),
+				false
+			);
+		} else if ("N-R->N".equals(pattern)) {
+			deleteRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(2),
+				(NodeToken) rule.getDescriptor().getToken(5),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R-N".equals(pattern)) {
+			deleteRelationships(
+				(NodeToken) rule.getDescriptor().getToken(5),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(0),
+				rule.getData(),
+				false
+			);
+		} else if ("N<-R->N".equals(pattern)) {
+			deleteRelationships(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(RelationshipToken) rule.getDescriptor().getToken(3),
+				(NodeToken) rule.getDescriptor().getToken(6),
+				rule.getData(),
+				true
+			);
+		} else if ("N^I".equals(pattern)) {
+			deleteIndexEntries(
+				(NodeToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else if ("R^I".equals(pattern)) {
+			deleteIndexEntries(
+				(RelationshipToken) rule.getDescriptor().getToken(0),
+				(IndexToken) rule.getDescriptor().getToken(2),
+				rule.getData()
+			);
+		} else {
+			throw new SubgraphError(this.ruleNumber, "Unknown rule: " + rule.toString());
+		}
+	}
+
+	/**
+	 * Bind every entity addressed by ID within a subgraph before any rule
+	 * is applied. IDs are resolved in ascending order, so that a run of
+	 * references reads the store sequentially, and an entity addressed by
+	 * several tokens is looked up only once.
+	 */
+	private void bindIdReferences(Subgraph subgraph) throws SubgraphError {
+		TreeMap<Long, List<NodeToken>> nodeIds = new TreeMap<Long, List<NodeToken>>();
+		TreeMap<Long, List<RelationshipToken>> relationshipIds = new TreeMap<Long, List<RelationshipToken>>();
+		for (Rule rule : subgraph) {
+			Descriptor descriptor = rule.getDescriptor();
+			for (int i = 0; i < descriptor.getPattern().length(); i++) {
+				Token token = descriptor.getToken(i);
+				if (token instanceof NodeToken && ((NodeToken) token).hasId()) {
+					NodeToken a = (NodeToken) token;
+					if (!nodeIds.containsKey(a.getId())) {
+						nodeIds.put(a.getId(), new ArrayList<NodeToken>());
+					}
+					nodeIds.get(a.getId()).add(a);
+				} else if (token instanceof RelationshipToken && ((RelationshipToken) token).hasId()) {
+					RelationshipToken r = (RelationshipToken) token;
+					if (!relationshipIds.containsKey(r.getId())) {
+						relationshipIds.put(r.getId(), new ArrayList<RelationshipToken>());
+					}
+					relationshipIds.get(r.getId()).add(r);
+				}
+			}
+		}
+		for (Map.Entry<Long, List<NodeToken>> entry : nodeIds.entrySet()) {
+			Node node;
+			try {
+				node = this.graphDB.getNodeById(entry.getKey());
+			} catch (NotFoundException e) {
+				throw new SubgraphError(this.ruleNumber, "Node " + entry.getKey() + " not found");
+			}
+			statistics.increment(Statistics.ID_REFERENCES_RESOLVED);
+			for (NodeToken a : entry.getValue()) {
+				if (!nodeStore.contains(a)) {
+					nodeStore.put(a, node);
+				} else if (!nodeStore.get(a).equals(Collections.singleton(node))) {
+					throw new SubgraphError(this.ruleNumber, a + " is already bound to another node");
+				}
+			}
+		}
+		for (Map.Entry<Long, List<RelationshipToken>> entry : relationshipIds.entrySet()) {
+			Relationship relationship;
+			try {
+				relationship = this.graphDB.getRelationshipById(entry.getKey());
+			} catch (NotFoundException e) {
+				throw new SubgraphError(this.ruleNumber, "Relationship " + entry.getKey() + " not found");
+			}
+			statistics.increment(Statistics.ID_REFERENCES_RESOLVED);
+			for (RelationshipToken r : entry.getValue()) {
+				if (r.hasType() && !relationship.getType().name().equals(r.getType())) {
+					throw new SubgraphError(this.ruleNumber, "Relationship " + entry.getKey() + " is not of type " + r.getType());
+				} else if (!relationshipStore.contains(r)) {
+					relationshipStore.put(r, relationship);
+				} else if (!relationshipStore.get(r).equals(Collections.singleton(relationship))) {
+					throw new SubgraphError(this.ruleNumber, r + " is already bound to another relationship");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bind every name within a subgraph that is not otherwise bound but
+	 * is known to the name dictionary, resolving IDs in ascending order.
+	 * Names whose entities no longer exist are left unbound.
+	 */
+	private void bindDictionaryNames(Subgraph subgraph) {
+		this.removedNodeNames.clear();
+		this.removedRelationshipNames.clear();
+		this.deletedNodeIds = new IdArray();
+		this.deletedRelationshipIds = new IdArray();
+		if (this.nameDictionary == null) {
+			return;
+		}
+		TreeMap<Long, List<NodeToken>> nodeIds = new TreeMap<Long, List<NodeToken>>();
+		TreeMap<Long, List<RelationshipToken>> relationshipIds = new TreeMap<Long, List<RelationshipToken>>();
+		for (Rule rule : subgraph) {
+			Descriptor descriptor = rule.getDescriptor();
+			for (int i = 0; i < descriptor.getPattern().length(); i++) {
+				Token token = descriptor.getToken(i);
+				if (token instanceof NodeToken && isDictionaryName((NodeToken) token) && !nodeStore.contains((NodeToken) token)) {
+					NodeToken a = (NodeToken) token;
+					long id = this.nameDictionary.nodeId(dictionaryName(a));
+					if (id >= 0) {
+						if (!nodeIds.containsKey(id)) {
+							nodeIds.put(id, new ArrayList<NodeToken>());
+						}
+						nodeIds.get(id).add(a);
+					}
+				} else if (token instanceof RelationshipToken && isDictionaryName((RelationshipToken) token) && !relationshipStore.contains((RelationshipToken) token)) {
+					RelationshipToken r = (RelationshipToken) token;
+					long id = this.nameDictionary.relationshipId(dictionaryName(r));
+					if (id >= 0) {
+						if (!relationshipIds.containsKey(id)) {
+							relationshipIds.put(id, new ArrayList<RelationshipToken>());
+						}
+						relationshipIds.get(id).add(r);
+					}
+				}
+			}
+		}
+		for (Map.Entry<Long, List<NodeToken>> entry : nodeIds.entrySet()) {
+			Node node;
+			try {
+				node = this.graphDB.getNodeById(entry.getKey());
+			} catch (NotFoundException e) {
+				continue;
+			}
+			statistics.increment(Statistics.DICTIONARY_NAMES_RESOLVED);
+			for (NodeToken a : entry.getValue()) {
+				nodeStore.put(a, node);
+			}
+		}
+		for (Map.Entry<Long, List<RelationshipToken>> entry : relationshipIds.entrySet()) {
+			Relationship relationship;
+			try {
+				relationship = this.graphDB.getRelationshipById(entry.getKey());
+			} catch (NotFoundException e) {
+				continue;
+			}
+			statistics.increment(Statistics.DICTIONARY_NAMES_RESOLVED);
+			for (RelationshipToken r : entry.getValue()) {
+				relationshipStore.put(r, relationship);
+			}
+		}
+	}
+
+	private static boolean isDictionaryName(EntityToken token) {
+		return token.hasName() && !token.hasId();
+	}
+
+	private static String dictionaryName(EntityToken token) {
+		return token.getIndex() == 0 ? token.getName() : token.getName() + '.' + token.getIndex();
+	}
+
+	/**
+	 * Record the names bound or rebound by a committed transaction in the
+	 * name dictionary, along with the names and IDs of entities deleted.
+	 */
+	private void recordNames() {
+		if (this.nameDictionary == null || this.deferMergeLockRelease) {
+			return;
+		}
+		try {
+			this.nameDictionary.record(
+				dictionaryNames(nodeStore.toChangedIdMap()), dictionaryNames(relationshipStore.toChangedIdMap()),
+				this.removedNodeNames, this.removedRelationshipNames,
+				this.deletedNodeIds, this.deletedRelationshipIds
+			);
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	private static Map<String, Long> dictionaryNames(Map<String, Long> ids) {
+		Iterator<String> names = ids.keySet().iterator();
+		while (names.hasNext()) {
+			// names given only by ID are not worth keeping
+			if (names.next().startsWith("@")) {
+				names.remove();
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Note a query of a stand-in for an index not created yet, which can
+	 * find nothing however much was added to it while explaining.
+	 */
+	private void queryingIndex(Index<?> index) {
+		if (index instanceof ExplainIndex) {
+			statistics.increment(Statistics.INDEX_QUERIES_UNEXPLAINED);
+		}
+	}
+
+	private static boolean isQueryRule(Rule rule) {
+		String pattern = rule.getDescriptor().getPattern();
+		return "N?I".equals(pattern) || "R?I".equals(pattern);
+	}
+
+	/**
+	 * Bind the entities returned by an index query to the entity named in
+	 * a query rule, in the order returned. Hits are read lazily and no
+	 * more than the limit given are read. If the entity is already bound,
+	 * its binding is narrowed to those entities also returned.
+	 */
+	private void queryRule(Rule rule) throws SubgraphError {
+		Token token = rule.getDescriptor().getToken(0);
+		IndexToken i = (IndexToken) rule.getDescriptor().getToken(2);
+		assertIndexHasName(i);
+		Map<String, Object> data = rule.getData();
+		if (data == null) {
+			throw new SubgraphError(this.ruleNumber, "Query rule requires data");
+		}
+		QueryContext query = indexQuery(data);
+		int limit = intValue(data, "limit");
+		if (token instanceof NodeToken) {
+			NodeToken a = (NodeToken) token;
+			LinkedHashSet<Node> nodes = new LinkedHashSet<Node>();
+			if (existsForNodes(i.getName())) {
+				Index<Node> index = nodeIndex(i.getName());
+				queryingIndex(index);
+				readHits(index.query(query), nodes, limit);
+			}
+			if (nodeStore.contains(a)) {
+				nodes.retainAll(nodeStore.remove(a));
+			}
+			nodeStore.put(a, nodes);
+		} else {
+			RelationshipToken r = (RelationshipToken) token;
+			RelationshipType type = relationshipType(r);
+			LinkedHashSet<Relationship> relationships = new LinkedHashSet<Relationship>();
+			if (existsForRelationships(i.getName())) {
+				RelationshipIndex index = relationshipIndex(i.getName());
+				queryingIndex(index);
+				readHits(index.query(query), relationships, limit);
+			}
+			if (type != null) {
+				Iterator<Relationship> iterator = relationships.iterator();
+				while (iterator.hasNext()) {
+					if (!iterator.next().isType(type)) {
+						iterator.remove();
+					}
+				}
+			}
+			if (relationshipStore.contains(r)) {
+				relationships.retainAll(relationshipStore.remove(r));
+			}
+			relationshipStore.put(r, relationships);
+		}
+	}
+
+	/**
+	 * Build an index query from the data of a query rule: either a Lucene
+	 * query string under "query", or a numeric range over "key" bounded by
+	 * "from" and "to", either of which may be left open. Results may be
+	 * sorted by one or more keys given under "sort".
+	 */
+	private QueryContext indexQuery(Map<String, Object> data) throws SubgraphError {
+		QueryContext query;
+		Object text = data.get("query");
+		Object key = data.get("key");
+		if (text instanceof String) {
+			query = new QueryContext(text);
+		} else if (text == null && key instanceof String) {
+			Object from = data.get("from");
+			Object to = data.get("to");
+			if ((from != null && !(from instanceof Number)) || (to != null && !(to instanceof Number))) {
+				throw new SubgraphError(this.ruleNumber, "Range bounds must be numeric");
+			}
+			query = QueryContext.numericRange((String) key, (Number) from, (Number) to);
+		} else {
+			throw new SubgraphError(this.ruleNumber, "Query rule requires a query string or a range key");
+		}
+		Object sort = data.get("sort");
+		if (sort instanceof String) {
+			query.sort((String) sort);
+		} else if (sort instanceof List && !((List) sort).isEmpty()) {
+			List<?> keys = (List<?>) sort;
+			String[] additionalKeys = new String[keys.size() - 1];
+			for (int k = 1; k < keys.size(); k++) {
+				additionalKeys[k - 1] = String.valueOf(keys.get(k));
+			}
+			query.sort(String.valueOf(keys.get(0)), additionalKeys);
+		} else if (sort != null) {
+			throw new SubgraphError(this.ruleNumber, "Sort must be a key or list of keys");
+		}
+		int limit = intValue(data, "limit");
+		if (limit > 0) {
+			query.top(limit);
+		}
+		return query;
+	}
+
+	private int intValue(Map<String, Object> data, String key) throws SubgraphError {
+		Object value = data.get(key);
+		if (value == null) {
+			return 0;
+		} else if (value instanceof Number && ((Number) value).intValue() >= 0) {
+			return ((Number) value).intValue();
+		} else {
+			throw new SubgraphError(this.ruleNumber, "Value of '" + key + "' must be a non-negative integer");
+		}
+	}
+
+	private <T extends PropertyContainer> void readHits(IndexHits<T> hits, Set<T> entities, int limit) {
+		try {
+			while (hits.hasNext() && (limit == 0 || entities.size() < limit)) {
+				entities.add(hits.next());
+			}
+			if (hits.hasNext()) {
+				statistics.increment(Statistics.INDEX_HITS_TRUNCATED);
+			}
+		} finally {
+			hits.close();
+		}
+		statistics.increment(Statistics.INDEX_QUERIES);
+	}
+
+	private Set<Node> createOrUpdateNodes(NodeToken a, Map<String, Object> properties)
+	{
+		HashSet<Node> nodes = new HashSet<Node>();
+		if (nodeStore.contains(a)) {
+			nodes.addAll(nodeStore.get(a));
+			addLabels(nodes, a);
+		} else {
+			Node node = createNode(labels(a));
+			nodeStore.put(a, node);
+			nodes.add(node);
+		}
+		setProperties(nodes, properties);
+		return nodes;
+	}
+
+	/**
+	 * Merge nodes described by the supplied token. An unbound, labelled
+	 * token is looked up by label and property through the first schema
+	 * index or uniqueness constraint on one of its labels for which a
+	 * value is supplied; all nodes found are bound and updated. A new node
+	 * is created only if none are found or no such index exists. Lookups
+	 * hold a lock on the label, key and value until the transaction ends,
+	 * taken up front by {@link #lockMergeKeys(Subgraph)}, so concurrent
+	 * merges cannot create the same node twice.
+	 *
+	 * @param a the node token
+	 * @param properties node properties
+	 * @return the nodes merged
+	 */
+	private Set<Node> mergeNodes(NodeToken a, Map<String, Object> properties)
+	{
+		String[] lookup = nodeStore.contains(a) ? null : labelLookup(a, properties);
+		if (lookup != null) {
+			String labelName = lookup[0];
+			String key = lookup[1];
+			Object value = properties.get(key);
+			lockMergeKey(labelMergeKey(labelName, key, value));
+			flushProperties();
+			HashSet<Node> nodes = new HashSet<Node>();
+			ResourceIterator<Node> hits = graphDB.findNodesByLabelAndProperty(
+				label(labelName), key, value
+			).iterator();
+			try {
+				while (hits.hasNext()) {
+					nodes.add(hits.next());
+				}
+			} finally {
+				hits.close();
+			}
+			if (nodes.isEmpty()) {
+				return createOrUpdateNodes(a, properties);
+			}
+			nodeStore.put(a, nodes);
+			addLabels(nodes, a);
+			setProperties(nodes, properties);
+			return nodes;
+		}		return createOrUpdateNodes(a, properties);
+	}
+
+	/**
+	 * Choose the label and property key through which an unbound node
+	 * token is merged: the first key of the first of its labels for which
+	 * a single value is supplied.
+	 *
+	 * @return the label name and key, or null if the node cannot be looked up
+	 */
+	private String[] labelLookup(NodeToken a, Map<String, Object> properties) {
+		if (a.hasLabels() && properties != null) {
+			for (String labelName : a.getLabels()) {
+				for (String key : lookupKeys(labelName)) {
+					Object value = properties.get(key);
+					if (value != null && !(value instanceof List)) {
+						return new String[] {labelName, key};
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String labelMergeKey(String labelName, String key, Object value) {
+		return labelName + ':' + key + '=' + value;
+	}
+
+	/**
+	 * Property keys through which nodes with a given label may be looked
+	 * up, with uniqueness constrained keys ahead of plain schema indexes.
+	 */
+	private List<String> lookupKeys(String labelName) {
+		List<String> keys = labelKeys.get(labelName);
+		if (keys == null) {
+			keys = new ArrayList<String>();
+			Label label = label(labelName);
+			for (ConstraintDefinition constraint : graphDB.schema().getConstraints(label)) {
+				if (constraint.isConstraintType(ConstraintType.UNIQUENESS)) {
+					for (String key : constraint.asUniquenessConstraint().getPropertyKeys()) {
+						if (!keys.contains(key)) {
+							keys.add(key);
+						}
+					}
+				}
+			}
+			for (IndexDefinition index : graphDB.schema().getIndexes(label)) {
+				for (String key : index.getPropertyKeys()) {
+					if (!keys.contains(key)) {
+						keys.add(key);
+					}
+				}
+			}
+			labelKeys.put(labelName, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Take the merge locks for every label merge and composite index key
+	 * merge within a subgraph before any of its rules run, and so before any database lock is held. The
+	 * locks are taken in stripe order, so that subgraphs merging the same
+	 * keys in different orders, or unrelated keys sharing stripes, cannot
+	 * each hold a lock the other waits for; such a wait would otherwise go
+	 * unseen by the database's deadlock detection and end in a timeout.
+	 * Keys are gathered whether or not the entity turns out to be bound by
+	 * an earlier rule, so a few more may be locked than are merged.
+	 */
+	private void lockMergeKeys(Subgraph subgraph) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (Rule rule : subgraph) {
+			Descriptor descriptor = rule.getDescriptor();
+			if ("N".equals(descriptor.getPattern())) {
+				Map<String, Object> properties = rule.getData();
+				String[] lookup = labelLookup((NodeToken) descriptor.getToken(0), properties);
+				if (lookup != null) {
+					keys.add(labelMergeKey(lookup[0], lookup[1], properties.get(lookup[1])));
+				}
+			} else if (this.compositeIndexKeys && isIndexRule(rule) && rule.getData().size() > 1) {
+				IndexToken index = (IndexToken) descriptor.getToken(2);
+				boolean relationships = "R^I".equals(descriptor.getPattern());
+				if (index.hasName() && (!relationships || ((RelationshipToken) descriptor.getToken(0)).hasType())) {
+					keys.add(compositeMergeKey(relationships, index.getName(), rule.getData()));
+				}
+			}
+		}
+		if (keys.isEmpty()) {
+			return;
+		}
+		List<ReentrantLock> locks;
+		try {
+			locks = this.mergeLockStripes.tryLockAll(keys, this.mergeLockTimeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransactionFailureException("Interrupted while waiting to merge " + keys, e);
+		}
+		if (locks == null) {
+			statistics.increment(Statistics.MERGE_LOCK_TIMEOUTS);
+			throw new MergeLockTimeoutException("Timed out waiting to merge " + keys);
+		}
+		this.mergeLocks.addAll(locks);
+	}
+
+	private void lockMergeKey(String key) {
+		ReentrantLock lock;
+		try {
+			lock = this.mergeLockStripes.tryLock(key, this.mergeLockTimeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransactionFailureException("Interrupted while waiting to merge " + key, e);
+		}
+		if (lock == null) {
+			statistics.increment(Statistics.MERGE_LOCK_TIMEOUTS);
+			throw new MergeLockTimeoutException("Timed out waiting to merge " + key);
+		}
+		this.mergeLocks.add(lock);
+	}
+
+	private Label[] labels(NodeToken a) {
+		List<String> names = a.getLabels();
+		Label[] labels = new Label[names.size()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = label(names.get(i));
+		}
+		return labels;
+	}
+
+	private void addLabels(Set<Node> nodes, NodeToken a) {
+		if (a.hasLabels()) {
+			Label[] labels = labels(a);
+			for (Node node : nodes) {
+				for (Label label : labels) {
+					if (!node.hasLabel(label)) {
+						node.addLabel(label);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create relationships described by the supplied tokens. Should only be
+	 * called if the RelationshipToken <code>r</code> does not describe a
+	 * pre-existing relationship.
+	 *
+	 * @param a start nodes
+	 * @param r relationships
+	 * @param b end nodes
+	 * @param properties relationship properties
+	 * @param bothWays bi-directional relationship
+	 * @return
+	 * @throws SubgraphError
+	 */
+	private Set<Relationship> createRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
+		throws SubgraphError
+	{
+		assert !relationshipStore.contains(r);
+		if (!r.hasType()) {
+			throw new SubgraphError(this.ruleNumber, "Cannot create untyped relationships");
+		}
+		RelationshipType type = relationshipType(r);
+		HashSet<Relationship> relationships = new HashSet<Relationship>();
+		Set<Node> startNodes = createOrUpdateNodes(a, null);
+		Set<Node> endNodes = createOrUpdateNodes(b, null);
+		for (Node startNode : startNodes) {
+			for (Node endNode : endNodes) {
+				relationships.add(createRelationship(startNode, endNode, type));
+				if (bothWays) {
+					relationships.add(createRelationship(endNode, startNode, type));
+				}
+			}
+		}
+		setProperties(relationships, properties);
+		relationshipStore.put(r, relationships);
+		return relationships;
+	}
+
+	private Set<Relationship> updateRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
+	{
+		assert relationshipStore.contains(r);
+		Set<Relationship> relationships = new LinkedHashSet<Relationship>(relationshipStore.get(r));
+		boolean aIsDefined = nodeStore.contains(a);
+		boolean bIsDefined = nodeStore.contains(b);
+		Set<Node> startNodes = aIsDefined ? nodeStore.get(a) : new HashSet<Node>(relationships.size());
+		Set<Node> endNodes = bIsDefined ? nodeStore.get(b) : new HashSet<Node>(relationships.size());
+		RelationshipType type = relationshipType(r);
 		Iterator<Relationship> relationshipIterator = relationships.iterator();
 		while (relationshipIterator.hasNext()) {
 			Relationship relationship = relationshipIterator.next();
@@ -378,291 +1596,1005 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 					setProperties(relationship, properties);
 				}
 			} else {
-				relationshipIterator.remove();                    // type mismatch
+				relationshipIterator.remove();                    // type mismatch
+			}
+		}
+		nodeStore.put(a, startNodes);
+		nodeStore.put(b, endNodes);
+		return relationships;
+	}
+
+	private void mergeRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
+		throws SubgraphError
+	{
+		if (relationshipStore.contains(r)) {
+			updateRelationships(a, r, b, properties, bothWays);
+		} else {
+			// with both ends bound and nothing to bind or set, any one match will do
+			boolean firstOnly = !r.hasName() && (properties == null || properties.isEmpty())
+				&& nodeStore.contains(a) && nodeStore.contains(b);
+			IdArray matches = match(a, b, r, bothWays, firstOnly);
+			int index = r.getIndex();
+			if (matches.isEmpty() || index > matches.size()) {
+				createRelationships(a, r, b, properties, bothWays);
+			} else if (!firstOnly) {
+				IdArray relationshipIds = matches;
+				if (index > 0) {
+					relationshipIds = new IdArray(1);
+					relationshipIds.add(matches.get(index - 1));
+				}
+				// resolve one relationship at a time, holding only IDs
+				IdArray startNodeIds = new IdArray();
+				IdArray endNodeIds = new IdArray();
+				int size = relationshipIds.size();
+				for (int i = 0; i < size; i++) {
+					Relationship relationship = graphDB.getRelationshipById(relationshipIds.get(i));
+					startNodeIds.add(relationship.getStartNode().getId());
+					endNodeIds.add(relationship.getEndNode().getId());
+					setProperties(relationship, properties);
+				}
+				this.nodeStore.put(a, startNodeIds);
+				this.nodeStore.put(b, endNodeIds);
+				relationshipStore.put(r, relationshipIds);
+			}
+		}
+	}
+
+	private void mergeIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
+	throws SubgraphError
+	{
+		assertIndexHasName(i);
+		Index<Node> index = nodeIndex(i.getName());
+		boolean aIsDefined = nodeStore.contains(a);
+		if (!aIsDefined && this.compositeIndexKeys && keyValuePairs.size() > 1) {
+			lockMergeKey(compositeMergeKey(false, i.getName(), keyValuePairs));
+			List<Node> hits = compositeIndexHits(index, keyValuePairs, true);
+			if (hits.isEmpty()) {
+				Node node = createNode();
+				if (!putIfAbsent(index, node, keyValuePairs)) {
+					// the first pair is taken, so look again past any Bloom filter
+					hits = compositeIndexHits(index, keyValuePairs, false);
+					if (hits.isEmpty()) {
+						addIndexEntries(index, node, keyValuePairs);
+					} else {
+						discardNode(node);
+					}
+				}
+				if (hits.isEmpty()) {
+					nodeStore.put(a, Collections.singleton(node));
+					return;
+				}
+			}
+			nodeStore.put(a, new HashSet<Node>(hits));
+			return;
+		}
+		HashSet<Node> nodes = aIsDefined ? new HashSet<Node>(nodeStore.get(a)) : new HashSet<Node>(keyValuePairs.size());
+		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if (aIsDefined) {
+				for (Node node : nodes) {
+					putIfAbsent(index, node, key, value);
+				}
+			} else {
+				Set<Node> hits = indexedNodes(index, key, value, true);
+				if (hits.isEmpty()) {
+					nodes.add(createIndexedNode(index, key, value));
+				} else {
+					nodes.addAll(hits);
+				}
+			}
+		}
+		nodeStore.put(a, nodes);
+	}
+
+	private void mergeIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
+		throws SubgraphError
+	{
+		assertIndexHasName(i);
+		Index<Relationship> index = relationshipIndex(i.getName());
+		RelationshipType type = relationshipType(r);
+		boolean rIsDefined = relationshipStore.contains(r);
+		if (!rIsDefined && r.hasType() && this.compositeIndexKeys && keyValuePairs.size() > 1) {
+			lockMergeKey(compositeMergeKey(true, i.getName(), keyValuePairs));
+			HashSet<Relationship> relationships = ofType(compositeIndexHits(index, keyValuePairs, true), type);
+			if (relationships.isEmpty()) {
+				Relationship relationship = createRelationship(createNode(), createNode(), type);
+				if (!putIfAbsent(index, relationship, keyValuePairs)) {
+					// the first pair is taken, so look again past any Bloom filter
+					relationships = ofType(compositeIndexHits(index, keyValuePairs, false), type);
+					if (relationships.isEmpty()) {
+						addIndexEntries(index, relationship, keyValuePairs);
+					} else {
+						discardRelationship(relationship);
+					}
+				}
+				if (relationships.isEmpty()) {
+					relationships.add(relationship);
+				}
+			}
+			relationshipStore.put(r, relationships);
+			return;
+		}
+		HashSet<Relationship> relationships = rIsDefined ? new HashSet<Relationship>(relationshipStore.get(r)) : new HashSet<Relationship>(keyValuePairs.size());
+		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if (rIsDefined) {
+				for (Relationship relationship : relationships) {
+					if (type == null || relationship.isType(type)) {
+						putIfAbsent(index, relationship, key, value);
+					}
+				}
+			} else if (r.hasType()) {
+				Set<Relationship> hits = indexedRelationships(index, key, value, true);
+				if (hits.isEmpty()) {
+					Relationship relationship = createIndexedRelationship(index, type, key, value);
+					if (relationship.isType(type)) {
+						relationships.add(relationship);
+					}
+				} else {
+					for (Relationship relationship : hits) {
+						if (relationship.isType(type)) {
+							relationships.add(relationship);
+						}
+					}
+				}
+			} else {
+				relationships.addAll(indexedRelationships(index, key, value));
+			}
+		}
+		relationshipStore.put(r, relationships);
+	}
+
+	/**
+	 * Create a node and add it to an index under a key:value pair, unless
+	 * a concurrent transaction has already added an entry under that pair.
+	 * The putIfAbsent lock on the pair is held until this transaction ends
+	 * so no two transactions can each create a node for the same pair; the
+	 * loser discards its own node and adopts the winner's instead.
+	 *
+	 * @param index the index to add the node to
+	 * @param key the index key
+	 * @param value the index value
+	 * @return the newly created node or the node already indexed
+	 */
+	private Node createIndexedNode(Index<Node> index, String key, Object value) {
+		Node node = createNode();
+		Node existing = putIfAbsent(index, node, key, value);
+		if (existing == null) {
+			return node;
+		} else {
+			discardNode(node);
+			return existing;
+		}
+	}
+
+	/**
+	 * Create a relationship between two new nodes and add it to an index,
+	 * as for {@link #createIndexedNode(Index, String, Object)}.
+	 *
+	 * @param index the index to add the relationship to
+	 * @param type the type of relationship to create
+	 * @param key the index key
+	 * @param value the index value
+	 * @return the newly created relationship or the relationship already indexed
+	 */
+	private Relationship createIndexedRelationship(Index<Relationship> index, RelationshipType type, String key, Object value) {
+		Relationship relationship = createRelationship(createNode(), createNode(), type);
+		Relationship existing = putIfAbsent(index, relationship, key, value);
+		if (existing == null) {
+			return relationship;
+		} else {
+			discardRelationship(relationship);
+			return existing;
+		}
+	}
+
+	/**
+	 * Delete a node created by this merge that lost a race for an index
+	 * entry, so it is not counted as created.
+	 */
+	private void discardNode(Node node) {
+		node.delete();
+		statistics.add(Statistics.NODES_CREATED, -1);
+	}
+
+	/**
+	 * Delete a relationship created by this merge that lost a race for an
+	 * index entry, together with the two nodes created for it.
+	 */
+	private void discardRelationship(Relationship relationship) {
+		Node[] nodes = relationship.getNodes();
+		deleteRelationship(relationship);
+		for (Node node : nodes) {
+			node.delete();
+		}
+		statistics.add(Statistics.RELATIONSHIPS_CREATED, -1);
+		statistics.add(Statistics.NODES_CREATED, -nodes.length);
+	}
+
+	private static HashSet<Relationship> ofType(List<Relationship> relationships, RelationshipType type) {
+		HashSet<Relationship> ofType = new HashSet<Relationship>();
+		for (Relationship relationship : relationships) {
+			if (relationship.isType(type)) {
+				ofType.add(relationship);
+			}
+		}
+		return ofType;
+	}
+
+	private Node createNode(Label... labels) {
+		statistics.increment(Statistics.NODES_CREATED);
+		return this.graphDB.createNode(labels);
+	}
+
+	private Relationship createRelationship(Node startNode, Node endNode, RelationshipType type) {
+		statistics.increment(Statistics.RELATIONSHIPS_CREATED);
+		Relationship relationship = startNode.createRelationshipTo(endNode, type);
+		adjacencyCache.relationshipCreated(relationship.getId(), startNode.getId(), endNode.getId(), type.name());
+		if (this.edgeIndexName != null) {
+			edgeIndex().add(relationship, EDGE_INDEX_KEY, type.name());
+		}
+		return relationship;
+	}
+
+	private void deleteRelationship(Relationship relationship) {
+		adjacencyCache.relationshipDeleted(
+			relationship.getId(), relationship.getStartNode().getId(), relationship.getEndNode().getId(),
+			relationship.getType().name()
+		);
+		if (this.edgeIndexName != null) {
+			edgeIndex().remove(relationship);
+		}
+		pendingProperties.remove(relationship);
+		if (this.nameDictionary != null) {
+			this.deletedRelationshipIds.add(relationship.getId());
+		}
+		relationship.delete();
+	}
+
+	/**
+	 * Delete a node, noting its ID so that no name in the name dictionary
+	 * goes on referring to it.
+	 */
+	private void deleteNode(Node node) {
+		if (this.nameDictionary != null) {
+			this.deletedNodeIds.add(node.getId());
+		}
+		node.delete();
+	}
+
+	private Set<Relationship> insertRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
+		throws SubgraphError
+	{
+		if (relationshipStore.contains(r)) {
+			return updateRelationships(a, r, b, properties, bothWays);
+		} else {
+			return createRelationships(a, r, b, properties, bothWays);
+		}
+	}
+
+	private void insertIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
+		throws SubgraphError
+	{
+		assertIndexHasName(i);
+		Index<Node> index = nodeIndex(i.getName());
+		boolean aIsDefined = nodeStore.contains(a);
+		HashSet<Node> nodes = aIsDefined ? new HashSet<Node>(nodeStore.get(a)) : new HashSet<Node>(keyValuePairs.size());
+		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			if (aIsDefined) {
+				for (Node node : nodes) {
+					addIndexEntry(index, node, key, value);
+				}
+			} else {
+				Node node = createNode();
+				addIndexEntry(index, node, key, value);
+				nodes.add(node);
 			}
 		}
-		nodeStore.put(a, startNodes);
-		nodeStore.put(b, endNodes);
-		return relationships;
+		nodeStore.put(a, nodes);
 	}
 
-	private void mergeRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
+	private void insertIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
 		throws SubgraphError
 	{
+		assertIndexHasName(i);
+		Index<Relationship> index = relationshipIndex(i.getName());
+		Set<Relationship> relationships;
 		if (relationshipStore.contains(r)) {
-			updateRelationships(a, r, b, properties, bothWays);
+			relationships = relationshipStore.get(r);
 		} else {
-			TreeSet<Relationship> relationships;
-			if (r.hasType()) {
-				relationships = match(a, b, DynamicRelationshipType.withName(r.getType()));
-				if (bothWays) {
-					relationships.addAll(match(b, a, DynamicRelationshipType.withName(r.getType())));
-				}
+			relationships = createRelationships(NodeToken.anon(), r, NodeToken.anon(), null, false);
+		}
+		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			for (Relationship relationship : relationships) {
+				addIndexEntry(index, relationship, key, value);
+			}
+		}
+		relationshipStore.put(r, relationships);
+	}
+
+	private void deleteNodes(NodeToken a, Map<String, Object> properties)
+	{
+		if (nodeStore.contains(a)) {
+			// deleted entities may still be held against index entries
+			indexEntryCache.clear();
+			if (isDictionaryName(a)) {
+				this.removedNodeNames.add(dictionaryName(a));
+			}
+			if (this.cascadeBatchSize > 0) {
+				cascadeDeleteNodes(nodeStore.remove(a));
 			} else {
-				relationships = match(a, b);
-				if (bothWays) {
-					relationships.addAll(match(b, a));
+				for (Node node : nodeStore.remove(a)) {
+					pendingProperties.remove(node);
+					deleteNode(node);
 				}
 			}
-			int index = r.getIndex();
-			int currentIndex = 0;
-			boolean found = false;
-			HashSet<Node> startNodes = new HashSet<Node>();
-			HashSet<Node> endNodes = new HashSet<Node>();
-			for (Relationship relationship : relationships) {
-				currentIndex++;
-				if (index == 0 || index == currentIndex) {
-					found = true;
-					startNodes.add(relationship.getStartNode());
-					endNodes.add(relationship.getEndNode());
-					setProperties(relationship, properties);
+		}
+	}
+
+	/**
+	 * Delete nodes along with their relationships and legacy index entries,
+	 * reading no more than a batch of relationships at a time.
+	 */
+	private void cascadeDeleteNodes(Set<Node> nodes) {
+		if (this.explain) {
+			countCascadeDeletions(nodes);
+			return;
+		}
+		ArrayList<Index<Node>> nodeIndexes = new ArrayList<Index<Node>>();
+		for (String name : this.graphDB.index().nodeIndexNames()) {
+			Index<Node> index = nodeIndex(name);
+			if (index.isWriteable()) {
+				nodeIndexes.add(index);
+			}
+		}
+		ArrayList<RelationshipIndex> relationshipIndexes = new ArrayList<RelationshipIndex>();
+		for (String name : this.graphDB.index().relationshipIndexNames()) {
+			RelationshipIndex index = relationshipIndex(name);
+			// the edge index is kept up to date by deleteRelationship
+			if (index.isWriteable() && !name.equals(this.edgeIndexName)) {
+				relationshipIndexes.add(index);
+			}
+		}
+		LinkedHashSet<Relationship> batch = new LinkedHashSet<Relationship>();
+		for (Node node : nodes) {
+			while (true) {
+				// loops may be seen from both ends
+				for (Relationship relationship : node.getRelationships()) {
+					batch.add(relationship);
+					if (batch.size() >= this.cascadeBatchSize) {
+						break;
+					}
 				}
+				if (batch.isEmpty()) {
+					break;
+				}
+				for (Relationship relationship : batch) {
+					for (RelationshipIndex index : relationshipIndexes) {
+						index.remove(relationship);
+					}
+					deleteRelationship(relationship);
+					statistics.increment(Statistics.CASCADE_RELATIONSHIPS_DELETED);
+					cascadeDeleted();
+				}
+				batch.clear();
 			}
-			if (found) {
-				this.nodeStore.put(a, startNodes);
-				this.nodeStore.put(b, endNodes);
-			} else {
-				relationships.addAll(createRelationships(a, r, b, properties, bothWays));
+			for (Index<Node> index : nodeIndexes) {
+				index.remove(node);
 			}
-			relationshipStore.put(r, relationships);
+			pendingProperties.remove(node);
+			deleteNode(node);
+			cascadeDeleted();
 		}
 	}
 
-	private void mergeIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
-	throws SubgraphError
+	/**
+	 * Count the relationships a cascading delete of the nodes given would
+	 * delete without deleting anything, so that explaining a large delete
+	 * neither takes its locks nor builds up one large transaction.
+	 */
+	private void countCascadeDeletions(Set<Node> nodes) {
+		for (Node node : nodes) {
+			for (Relationship relationship : node.getRelationships()) {
+				Node other = relationship.getOtherNode(node);
+				// a relationship between two of the nodes is counted from one end
+				if (!nodes.contains(other) || other.getId() >= node.getId()) {
+					statistics.increment(Statistics.CASCADE_RELATIONSHIPS_COUNTED);
+				}
+			}
+		}
+	}
+
+	private void cascadeDeleted() {
+		this.cascadeDeletions++;
+		if (this.commitCascadeBatches && this.cascadeDeletions >= this.cascadeBatchSize) {
+			flushProperties();
+			this.transaction.success();
+			try {
+				this.transaction.finish();
+			} finally {
+				// leave a transaction in place for attempt to finish
+				this.transaction = graphDB.beginTx();
+			}
+			this.cascadeDeletions = 0;
+			this.batchesCommitted++;
+			statistics.increment(Statistics.CASCADE_BATCHES_COMMITTED);
+		}
+	}
+
+	/**
+	 * Delete one or more relationships
+	 *
+	 * @param a          start node token
+	 * @param r          relationship token
+	 * @param b          end node token
+	 * @param properties
+	 */
+	private void deleteRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays) {
+		Set<Relationship> relationships;
+		if (relationshipStore.contains(r)) {
+			relationships = relationshipStore.remove(r);
+			if (isDictionaryName(r)) {
+				this.removedRelationshipNames.add(dictionaryName(r));
+			}
+		} else {
+			relationships = relationships(match(a, b, r, bothWays));
+		}
+		HashSet<Node> startNodes = new HashSet<Node>();
+		HashSet<Node> endNodes = new HashSet<Node>();
+		indexEntryCache.clear();
+		for (Relationship relationship : relationships) {
+			startNodes.add(relationship.getStartNode());
+			endNodes.add(relationship.getEndNode());
+			deleteRelationship(relationship);
+		}
+		this.nodeStore.put(a, startNodes);
+		this.nodeStore.put(b, endNodes);
+	}
+
+	private void deleteIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
+		throws SubgraphError
 	{
 		assertIndexHasName(i);
-		Index<Node> index = this.graphDB.index().forNodes(i.getName());
+		Index<Node> index = nodeIndex(i.getName());
 		boolean aIsDefined = nodeStore.contains(a);
 		HashSet<Node> nodes = aIsDefined ? new HashSet<Node>(nodeStore.get(a)) : new HashSet<Node>(keyValuePairs.size());
-		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
-			if (aIsDefined) {
-				for (Node node : nodes) {
-					index.putIfAbsent(node, key, value);
+		if (aIsDefined) {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+				for(Node node : nodes) {
+					removeIndexEntry(index, node, entry.getKey(), entry.getValue());
 				}
-			} else {
-				IndexHits<Node> hits = index.get(key, value);
-				if (hits.size() == 0) {
-					Node node = this.graphDB.createNode();
-					index.putIfAbsent(node, key, value);
+			}
+		} else {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+				String key = entry.getKey();
+				Object value = entry.getValue();
+				for (Node node : indexedNodes(index, key, value)) {
 					nodes.add(node);
-				} else {
-					for (Node node : hits) {
-						nodes.add(node);
-					}
+					removeIndexEntry(index, node, key, value);
 				}
 			}
 		}
 		nodeStore.put(a, nodes);
 	}
 
-	private void mergeIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
+	private void deleteIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
 		throws SubgraphError
 	{
 		assertIndexHasName(i);
-		Index<Relationship> index = this.graphDB.index().forRelationships(i.getName());
-		RelationshipType type = r.hasType() ? DynamicRelationshipType.withName(r.getType()) : null;
+		Index<Relationship> index = relationshipIndex(i.getName());
+		RelationshipType type = relationshipType(r);
 		boolean rIsDefined = relationshipStore.contains(r);
 		HashSet<Relationship> relationships = rIsDefined ? new HashSet<Relationship>(relationshipStore.get(r)) : new HashSet<Relationship>(keyValuePairs.size());
-		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
-			if (rIsDefined) {
+		if (rIsDefined) {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
 				for (Relationship relationship : relationships) {
 					if (type == null || relationship.isType(type)) {
-						index.putIfAbsent(relationship, key, value);
+						removeIndexEntry(index, relationship, entry.getKey(), entry.getValue());
 					}
 				}
-			} else if (r.hasType()) {
-				IndexHits<Relationship> hits = index.get(key, value);
-				if (hits.size() == 0) {
-					for (Relationship relationship : createRelationships(NodeToken.anon(), RelationshipToken.anon(r.getType()), NodeToken.anon(), null, false)) {
-						index.putIfAbsent(relationship, key, value);
+			}
+		} else if (r.hasType()) {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+				String key = entry.getKey();
+				Object value = entry.getValue();
+				for (Relationship relationship : indexedRelationships(index, key, value)) {
+					if (relationship.isType(type)) {
 						relationships.add(relationship);
-					}
-				} else {
-					for (Relationship relationship : hits) {
-						if (relationship.isType(type)) {
-							relationships.add(relationship);
-						}
+						removeIndexEntry(index, relationship, key, value);
 					}
 				}
-			} else {
-				IndexHits<Relationship> hits = index.get(key, value);
-				for (Relationship relationship : hits) {
+			}
+		} else {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+				String key = entry.getKey();
+				Object value = entry.getValue();
+				for (Relationship relationship : indexedRelationships(index, key, value)) {
 					relationships.add(relationship);
+					removeIndexEntry(index, relationship, key, value);
 				}
 			}
 		}
 		relationshipStore.put(r, relationships);
 	}
 
-	private Set<Relationship> insertRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays)
-		throws SubgraphError
-	{
-		if (relationshipStore.contains(r)) {
-			return updateRelationships(a, r, b, properties, bothWays);
+	private Set<Node> indexedNodes(Index<Node> index, String key, Object value) {
+		return indexedNodes(index, key, value, false);
+	}
+
+	/**
+	 * Look up the nodes indexed under a key and value, from the index
+	 * entry cache where held and otherwise from the index itself. Hits
+	 * are read lazily and always closed. For a merge, a Bloom filter set
+	 * for the index may rule the entry out without a lookup, and no more
+	 * hits are read than the index hit limit allows; a truncated set of
+	 * hits is not cached.
+	 */
+	private Set<Node> indexedNodes(Index<Node> index, String key, Object value, boolean merging) {
+		LinkedHashSet<Node> nodes = new LinkedHashSet<Node>();
+		IdArray ids = cachedIndexEntry(index, key, value);
+		BloomFilter filter = merging ? bloomFilter(index) : null;
+		int limit = merging ? this.indexHitLimit : 0;
+		if (ids == null && filter != null && !filter.mightContain(bloomFilterKey(key, value))) {
+			statistics.increment(Statistics.BLOOM_FILTER_LOOKUPS_SAVED);
+			if (isCacheable(index, value)) {
+				indexEntryCache.put(index.getName(), false, key, value, new IdArray());
+			}
+		} else if (ids == null) {
+			IndexHits<Node> hits = index.get(key, value);
+			boolean truncated;
+			try {
+				while (hits.hasNext() && (limit == 0 || nodes.size() < limit)) {
+					nodes.add(hits.next());
+				}
+				truncated = hits.hasNext();
+			} finally {
+				hits.close();
+			}
+			statistics.increment(Statistics.INDEX_LOOKUPS);
+			if (filter != null && nodes.isEmpty()) {
+				statistics.increment(Statistics.BLOOM_FILTER_FALSE_POSITIVES);
+			}
+			if (truncated) {
+				statistics.increment(Statistics.INDEX_HITS_TRUNCATED);
+			} else if (isCacheable(index, value)) {
+				indexEntryCache.put(index.getName(), false, key, value, ids(nodes));
+			}
 		} else {
-			return createRelationships(a, r, b, properties, bothWays);
+			int size = limit == 0 ? ids.size() : Math.min(ids.size(), limit);
+			for (int i = 0; i < size; i++) {
+				nodes.add(graphDB.getNodeById(ids.get(i)));
+			}
 		}
+		return nodes;
 	}
 
-	private void insertIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
-		throws SubgraphError
-	{
-		assertIndexHasName(i);
-		Index<Node> index = this.graphDB.index().forNodes(i.getName());
-		boolean aIsDefined = nodeStore.contains(a);
-		HashSet<Node> nodes = aIsDefined ? new HashSet<Node>(nodeStore.get(a)) : new HashSet<Node>(keyValuePairs.size());
+	private Set<Relationship> indexedRelationships(Index<Relationship> index, String key, Object value) {
+		return indexedRelationships(index, key, value, false);
+	}
+
+	/**
+	 * Look up the relationships indexed under a key and value, as for
+	 * {@link #indexedNodes(Index, String, Object, boolean)}.
+	 */
+	private Set<Relationship> indexedRelationships(Index<Relationship> index, String key, Object value, boolean merging) {
+		LinkedHashSet<Relationship> relationships = new LinkedHashSet<Relationship>();
+		IdArray ids = cachedIndexEntry(index, key, value);
+		BloomFilter filter = merging ? bloomFilter(index) : null;
+		int limit = merging ? this.indexHitLimit : 0;
+		if (ids == null && filter != null && !filter.mightContain(bloomFilterKey(key, value))) {
+			statistics.increment(Statistics.BLOOM_FILTER_LOOKUPS_SAVED);
+			if (isCacheable(index, value)) {
+				indexEntryCache.put(index.getName(), true, key, value, new IdArray());
+			}
+		} else if (ids == null) {
+			IndexHits<Relationship> hits = index.get(key, value);
+			boolean truncated;
+			try {
+				while (hits.hasNext() && (limit == 0 || relationships.size() < limit)) {
+					relationships.add(hits.next());
+				}
+				truncated = hits.hasNext();
+			} finally {
+				hits.close();
+			}
+			statistics.increment(Statistics.INDEX_LOOKUPS);
+			if (filter != null && relationships.isEmpty()) {
+				statistics.increment(Statistics.BLOOM_FILTER_FALSE_POSITIVES);
+			}
+			if (truncated) {
+				statistics.increment(Statistics.INDEX_HITS_TRUNCATED);
+			} else if (isCacheable(index, value)) {
+				indexEntryCache.put(index.getName(), true, key, value, ids(relationships));
+			}
+		} else {
+			int size = limit == 0 ? ids.size() : Math.min(ids.size(), limit);
+			for (int i = 0; i < size; i++) {
+				relationships.add(graphDB.getRelationshipById(ids.get(i)));
+			}
+		}
+		return relationships;
+	}
+
+	/**
+	 * Look up the entities indexed under all of a set of key:value pairs,
+	 * as the intersection of an exact lookup of each pair, so that values
+	 * match just as they do for a single pair. The lookup stops as soon as
+	 * no entity is left. If a Bloom filter set for the index rules out any
+	 * one pair, and filtering is asked for, there can be no match and no
+	 * lookup is made. No more hits are returned than the index hit limit
+	 * allows.
+	 */
+	private <T extends PropertyContainer> List<T> compositeIndexHits(Index<T> index, Map<String, Object> keyValuePairs, boolean filtered) {
+		ArrayList<T> entities = new ArrayList<T>();
+		BloomFilter filter = filtered ? bloomFilter(index) : null;
+		if (filter != null) {
+			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+				if (!filter.mightContain(bloomFilterKey(entry.getKey(), entry.getValue()))) {
+					statistics.increment(Statistics.BLOOM_FILTER_LOOKUPS_SAVED);
+					return entities;
+				}
+			}
+		}
+		statistics.increment(Statistics.INDEX_COMPOSITE_QUERIES);
+		LinkedHashSet<T> matches = null;
 		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
-			if (aIsDefined) {
-				for (Node node : nodes) {
-					index.add(node, key, value);
+			LinkedHashSet<T> hits = new LinkedHashSet<T>();
+			IndexHits<T> entryHits = index.get(entry.getKey(), entry.getValue());
+			try {
+				for (T entity : entryHits) {
+					if (matches == null || matches.contains(entity)) {
+						hits.add(entity);
+					}
 				}
-			} else {
-				Node node = this.graphDB.createNode();
-				index.add(node, key, value);
-				nodes.add(node);
+			} finally {
+				entryHits.close();
+			}
+			if (hits.isEmpty()) {
+				return entities;
 			}
+			matches = hits;
 		}
-		nodeStore.put(a, nodes);
+		for (T entity : matches) {
+			if (this.indexHitLimit != 0 && entities.size() == this.indexHitLimit) {
+				statistics.increment(Statistics.INDEX_HITS_TRUNCATED);
+				break;
+			}
+			entities.add(entity);
+		}
+		return entities;
 	}
 
-	private void insertIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
-		throws SubgraphError
-	{
-		assertIndexHasName(i);
-		Index<Relationship> index = this.graphDB.index().forRelationships(i.getName());
-		Set<Relationship> relationships;
-		if (relationshipStore.contains(r)) {
-			relationships = relationshipStore.get(r);
-		} else {
-			relationships = createRelationships(NodeToken.anon(), r, NodeToken.anon(), null, false);
+	/**
+	 * Add an entity newly created for a composite key to an index under
+	 * every pair, the first pair in key order through putIfAbsent. If that
+	 * pair is already held by another entity, nothing is added and false
+	 * is returned, for the caller to look the composite key up again.
+	 */
+	private <T extends PropertyContainer> boolean putIfAbsent(Index<T> index, T entity, Map<String, Object> keyValuePairs) {
+		TreeMap<String, Object> sorted = new TreeMap<String, Object>(keyValuePairs);
+		Map.Entry<String, Object> first = sorted.pollFirstEntry();
+		try {
+			if (putIfAbsent(index, entity, first.getKey(), first.getValue()) != null) {
+				return false;
+			}
+		} catch (NoSuchElementException e) {
+			// the pair is shared by other composite keys, so is held by more than one entity
+			return false;
 		}
+		addIndexEntries(index, entity, sorted);
+		return true;
+	}
+
+	private <T extends PropertyContainer> void addIndexEntries(Index<T> index, T entity, Map<String, Object> keyValuePairs) {
 		for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
-			for (Relationship relationship : relationships) {
-				index.add(relationship, key, value);
+			addIndexEntry(index, entity, entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Form the merge lock key for a composite index key, independent of
+	 * the order in which its pairs were given.
+	 */
+	private static String compositeMergeKey(boolean relationships, String indexName, Map<String, Object> keyValuePairs) {
+		StringBuilder key = new StringBuilder(relationships ? "R|" : "N|");
+		key.append(indexName).append('|');
+		for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(keyValuePairs).entrySet()) {
+			key.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return key.toString();
+	}
+
+	private IdArray cachedIndexEntry(Index<?> index, String key, Object value) {
+		if (isCacheable(index, value)) {
+			IdArray ids = indexEntryCache.get(index.getName(), isRelationshipIndex(index), key, value);
+			if (ids != null) {
+				statistics.increment(Statistics.INDEX_CACHE_HITS);
+				return ids;
 			}
 		}
-		relationshipStore.put(r, relationships);
+		return null;
+	}
+
+	private <T extends PropertyContainer> T putIfAbsent(Index<T> index, T entity, String key, Object value) {
+		T existing = index.putIfAbsent(entity, key, value);
+		if (existing == null) {
+			indexEntryAdded(index, entity, key, value);
+		} else if (isCacheable(index, value)) {
+			// the entry may have been cached as absent before the race was lost
+			IdArray ids = new IdArray(1);
+			ids.add(id(existing));
+			indexEntryCache.put(index.getName(), isRelationshipIndex(index), key, value, ids);
+		}
+		return existing;
+	}
+
+	private <T extends PropertyContainer> void addIndexEntry(Index<T> index, T entity, String key, Object value) {
+		index.add(entity, key, value);
+		indexEntryAdded(index, entity, key, value);
+	}
+
+	private <T extends PropertyContainer> void removeIndexEntry(Index<T> index, T entity, String key, Object value) {
+		index.remove(entity, key, value);
+		if (isCacheable(index, value)) {
+			indexEntryCache.removed(index.getName(), isRelationshipIndex(index), key, value, id(entity));
+		}
+	}
+
+	private void indexEntryAdded(Index<?> index, PropertyContainer entity, String key, Object value) {
+		if (isCacheable(index, value)) {
+			indexEntryCache.added(index.getName(), isRelationshipIndex(index), key, value, id(entity));
+		}
+		BloomFilter filter = bloomFilter(index);
+		// entries added while explaining are rolled back
+		if (filter != null && !this.explain) {
+			filter.add(bloomFilterKey(key, value));
+		}
+	}
+
+	private BloomFilter bloomFilter(Index<?> index) {
+		if (bloomFilters.isEmpty()) {
+			return null;
+		}
+		return bloomFilters.get((isRelationshipIndex(index) ? "R:" : "N:") + index.getName());
+	}
+
+	/**
+	 * Form the string under which an index entry is held in a Bloom filter.
+	 * Filters built ahead of a load must add entries in this form.
+	 *
+	 * @param key the index key
+	 * @param value the index value
+	 * @return the filter entry
+	 */
+	public static String bloomFilterKey(String key, Object value) {
+		return key + '\u0000' + value;
+	}
+
+	private static boolean isRelationshipIndex(Index<?> index) {
+		return Relationship.class.equals(index.getEntityType());
+	}
+
+	/**
+	 * Only entries of exact indexes with simple values are cached, since
+	 * a lookup in any other kind of index may match more than the entries
+	 * added under the same key and value.
+	 */
+	private boolean isCacheable(Index<?> index, Object value) {
+		if (!(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+			return false;
+		}
+		if (index instanceof ExplainIndex) {
+			return false;
+		}
+		String name = (isRelationshipIndex(index) ? "R:" : "N:") + index.getName();
+		Boolean exact = exactIndexes.get(name);
+		if (exact == null) {
+			exact = "exact".equals(graphDB.index().getConfiguration(index).get("type"));
+			exactIndexes.put(name, exact);
+		}
+		return exact;
+	}
+
+	private static boolean isIndexRule(Rule rule) {
+		String pattern = rule.getDescriptor().getPattern();
+		return rule.getData() != null && ("N^I".equals(pattern) || "R^I".equals(pattern));
 	}
 
-	private void deleteNodes(NodeToken a, Map<String, Object> properties)
-	{
-		if (nodeStore.contains(a)) {
-			for (Node node : nodeStore.remove(a)) {
-				node.delete();
-			}
+	/**
+	 * The values to be looked up under one key of one index.
+	 */
+	private static class IndexLookups {
+
+		private final Index<?> index;
+		private final String key;
+		private final LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+
+		private IndexLookups(Index<?> index, String key) {
+			this.index = index;
+			this.key = key;
 		}
+
 	}
 
 	/**
-	 * Delete one or more relationships
+	 * Resolve the entries used by a run of index merge rules into the index
+	 * entry cache, grouping them by index and key. Entries which are already
+	 * cached, ruled out by a Bloom filter or held in an index which cannot
+	 * be cached are left for the rules to look up as usual.
 	 *
-	 * @param a          start node token
-	 * @param r          relationship token
-	 * @param b          end node token
-	 * @param properties
+	 * @param rules the rules to look ahead over
 	 */
-	private void deleteRelationships(NodeToken a, RelationshipToken r, NodeToken b, Map<String, Object> properties, boolean bothWays) {
-		Set<Relationship> relationships;
-		if (relationshipStore.contains(r)) {
-			relationships = relationshipStore.remove(r);
-		} else if (r.hasType()) {
-			relationships = match(a, b, DynamicRelationshipType.withName(r.getType()));
-			if (bothWays) {
-				relationships.addAll(match(b, a, DynamicRelationshipType.withName(r.getType())));
+	private void prefetchIndexEntries(List<Rule> rules) {
+		LinkedHashMap<String, IndexLookups> lookups = new LinkedHashMap<String, IndexLookups>();
+		for (Rule rule : rules) {
+			if (!isIndexRule(rule)) {
+				continue;
 			}
-		} else {
-			relationships = match(a, b);
-			if (bothWays) {
-				relationships.addAll(match(b, a));
+			boolean relationships = "R^I".equals(rule.getDescriptor().getPattern());
+			IndexToken token = (IndexToken) rule.getDescriptor().getToken(2);
+			if (!token.hasName()) {
+				continue;
 			}
-		}
-		TreeSet<Node> startNodes = new TreeSet<Node>();
-		TreeSet<Node> endNodes = new TreeSet<Node>();
-		for (Relationship relationship : relationships) {
-			startNodes.add(relationship.getStartNode());
-			endNodes.add(relationship.getEndNode());
-			relationship.delete();
-		}
-		this.nodeStore.put(a, startNodes);
-		this.nodeStore.put(b, endNodes);
-	}
-
-	private void deleteIndexEntries(NodeToken a, IndexToken i, Map<String, Object> keyValuePairs)
-		throws SubgraphError
-	{
-		assertIndexHasName(i);
-		Index<Node> index = this.graphDB.index().forNodes(i.getName());
-		boolean aIsDefined = nodeStore.contains(a);
-		HashSet<Node> nodes = aIsDefined ? new HashSet<Node>(nodeStore.get(a)) : new HashSet<Node>(keyValuePairs.size());
-		if (aIsDefined) {
-			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-				for(Node node : nodes) {
-					index.remove(node, entry.getKey(), entry.getValue());
-				}
+			String name = token.getName();
+			Index<?> index;
+			if (relationships) {
+				index = existsForRelationships(name) ? relationshipIndex(name) : null;
+			} else {
+				index = existsForNodes(name) ? nodeIndex(name) : null;
 			}
-		} else {
-			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
+			if (index == null) {
+				continue;
+			}
+			BloomFilter filter = bloomFilter(index);
+			for (Map.Entry<String, Object> entry : rule.getData().entrySet()) {
 				String key = entry.getKey();
 				Object value = entry.getValue();
-				IndexHits<Node> hits = index.get(key, value);
-				for (Node node : hits) {
-					nodes.add(node);
-					index.remove(node, key, value);
+				if (!isCacheable(index, value) || indexEntryCache.get(name, relationships, key, value) != null) {
+					continue;
+				}
+				if (filter != null && !filter.mightContain(bloomFilterKey(key, value))) {
+					continue;
+				}
+				String group = (relationships ? "R:" : "N:") + name + '\u0000' + key;
+				IndexLookups lookup = lookups.get(group);
+				if (lookup == null) {
+					lookup = new IndexLookups(index, key);
+					lookups.put(group, lookup);
 				}
+				lookup.values.put(String.valueOf(value), value);
 			}
 		}
-		nodeStore.put(a, nodes);
+		for (IndexLookups lookup : lookups.values()) {
+			prefetchIndexEntries(lookup.index, lookup.key, new ArrayList<Object>(lookup.values.values()));
+		}
 	}
 
-	private void deleteIndexEntries(RelationshipToken r, IndexToken i, Map<String, Object> keyValuePairs)
-		throws SubgraphError
-	{
-		assertIndexHasName(i);
-		Index<Relationship> index = this.graphDB.index().forRelationships(i.getName());
-		RelationshipType type = r.hasType() ? DynamicRelationshipType.withName(r.getType()) : null;
-		boolean rIsDefined = relationshipStore.contains(r);
-		HashSet<Relationship> relationships = rIsDefined ? new HashSet<Relationship>(relationshipStore.get(r)) : new HashSet<Relationship>(keyValuePairs.size());
-		if (rIsDefined) {
-			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-				for (Relationship relationship : relationships) {
-					if (type == null || relationship.isType(type)) {
-						index.remove(relationship, entry.getKey(), entry.getValue());
-					}
-				}
+	/**
+	 * Resolve a batch of values under one index key with a single query
+	 * matching any of them. If nothing matches, none of the values are
+	 * indexed. Otherwise, the batch is split in two and each half resolved
+	 * in turn, down to individual lookups for small batches or those in
+	 * which most values are indexed.
+	 */
+	private void prefetchIndexEntries(Index<?> index, String key, List<Object> values) {
+		boolean relationships = isRelationshipIndex(index);
+		if (values.size() > 2) {
+			BooleanQuery query = new BooleanQuery();
+			for (Object value : values) {
+				query.add(exactQuery(key, value), BooleanClause.Occur.SHOULD);
 			}
-		} else if (r.hasType()) {
-			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-				String key = entry.getKey();
-				Object value = entry.getValue();
-				IndexHits<Relationship> hits = index.get(key, value);
-				for (Relationship relationship : hits) {
-					if (relationship.isType(type)) {
-						relationships.add(relationship);
-						index.remove(relationship, key, value);
-					}
+			// count no further than needed to choose between splitting and point lookups
+			IndexHits<?> hits = index.query(query);
+			int size = 0;
+			try {
+				while (size * 2 < values.size() && hits.hasNext()) {
+					hits.next();
+					size++;
 				}
+			} finally {
+				hits.close();
 			}
-		} else {
-			for (Map.Entry<String, Object> entry : keyValuePairs.entrySet()) {
-				String key = entry.getKey();
-				Object value = entry.getValue();
-				IndexHits<Relationship> hits = index.get(key, value);
-				for (Relationship relationship : hits) {
-					relationships.add(relationship);
-					index.remove(relationship, key, value);
+			statistics.increment(Statistics.INDEX_BATCH_QUERIES);
+			if (size == 0) {
+				for (Object value : values) {
+					indexEntryCache.put(index.getName(), relationships, key, value, new IdArray());
 				}
+				return;
+			} else if (size * 2 < values.size()) {
+				int middle = values.size() / 2;
+				prefetchIndexEntries(index, key, values.subList(0, middle));
+				prefetchIndexEntries(index, key, values.subList(middle, values.size()));
+				return;
 			}
 		}
-		relationshipStore.put(r, relationships);
+		for (Object value : values) {
+			if (relationships) {
+				indexedRelationships(relationshipIndex(index.getName()), key, value);
+			} else {
+				indexedNodes(nodeIndex(index.getName()), key, value);
+			}
+		}
+	}
+
+	/**
+	 * Form the query an exact index runs for a lookup of a key and value,
+	 * as for {@link Index#get(String, Object)}. Only plain string, number
+	 * and boolean values are batched, and for these the lookup is a term
+	 * query on the value as a string; a numeric value context or an array
+	 * would be looked up differently, so these never reach here.
+	 */
+	private static Query exactQuery(String key, Object value) {
+		return new TermQuery(new Term(key, value.toString()));
+	}
+
+	private Index<Node> nodeIndex(String name) {
+		Index<Node> index = nodeIndexesByName.get(name);
+		if (index == null) {
+			if (this.explain && !this.graphDB.index().existsForNodes(name)) {
+				// explaining never creates an index; the stand-in goes at rewind
+				index = new ExplainIndex<Node>(this.graphDB, name, Node.class);
+			} else {
+				index = this.graphDB.index().forNodes(name);
+			}
+			nodeIndexesByName.put(name, index);
+		}
+		return index;
+	}
+
+	private RelationshipIndex relationshipIndex(String name) {
+		RelationshipIndex index = relationshipIndexesByName.get(name);
+		if (index == null) {
+			if (this.explain && !this.graphDB.index().existsForRelationships(name)) {
+				index = new ExplainIndex.Relationships(this.graphDB, name);
+			} else {
+				index = this.graphDB.index().forRelationships(name);
+			}
+			relationshipIndexesByName.put(name, index);
+		}
+		return index;
+	}
+
+	private boolean existsForNodes(String name) {
+		return nodeIndexesByName.containsKey(name) || this.graphDB.index().existsForNodes(name);
+	}
+
+	private boolean existsForRelationships(String name) {
+		return relationshipIndexesByName.containsKey(name) || this.graphDB.index().existsForRelationships(name);
+	}
+
+	/**
+	 * Resolve the type of a relationship token.
+	 *
+	 * @param r the relationship token
+	 * @return the relationship type, or null if untyped
+	 */
+	private RelationshipType relationshipType(RelationshipToken r) {
+		if (!r.hasType()) {
+			return null;
+		}
+		String name = r.getType();
+		RelationshipType type = typesByName.get(name);
+		if (type == null) {
+			type = DynamicRelationshipType.withName(name);
+			typesByName.put(name, type);
+		}
+		return type;
+	}
+
+	private Label label(String name) {
+		Label label = labelsByName.get(name);
+		if (label == null) {
+			label = DynamicLabel.label(name);
+			labelsByName.put(name, label);
+		}
+		return label;
 	}
 
 	private void assertIndexHasName(IndexToken token)
@@ -674,46 +2606,76 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 	}
 
 	/**
-	 * If A and B are both defined, match all relationships between A and B
-	 * If only A is defined, match all outgoing relationships from A
-	 * If only B is defined, match all incoming relationships into B
-	 * If neither are defined, match none
+	 * Match the relationships described by a relationship token, in one or
+	 * both directions.
 	 *
-	 * @param a start node token
-	 * @param b end node token
-	 * @return list of matching relationships
+	 * @param a        start node token
+	 * @param b        end node token
+	 * @param r        relationship token, typed or untyped
+	 * @param bothWays whether to also match relationships from B to A
+	 * @return IDs of matching relationships
 	 */
-	private TreeSet<Relationship> match(NodeToken a, NodeToken b) {
-		final TreeSet<Relationship> matches = new TreeSet<Relationship>(new RelationshipComparator());
-		if (nodeStore.contains(a)) {
-			Set<Node> startNodes = nodeStore.get(a);
-			if (nodeStore.contains(b)) {
-				Set<Node> endNodes = nodeStore.get(b);
-				for (Node startNode : startNodes) {
-					for (Relationship candidate : startNode.getRelationships(Direction.OUTGOING)) {
-						if (endNodes.contains(candidate.getEndNode())) {
-							matches.add(candidate);
-						}
-					}
-				}
-			} else {
-				for (Node startNode : startNodes) {
-					for (Relationship candidate : startNode.getRelationships(Direction.OUTGOING)) {
-						matches.add(candidate);
-					}
-				}
+	private IdArray match(NodeToken a, NodeToken b, RelationshipToken r, boolean bothWays) {
+		return match(a, b, r, bothWays, false);
+	}
+
+	/**
+	 * Match relationships as for {@link #match(NodeToken, NodeToken,
+	 * RelationshipToken, boolean)}, optionally stopping at the first match
+	 * found where only the existence of a match matters.
+	 */
+	private IdArray match(NodeToken a, NodeToken b, RelationshipToken r, boolean bothWays, boolean firstOnly) {
+		RelationshipType type = relationshipType(r);
+		if (this.edgeIndexName != null && type != null && nodeStore.contains(a) && nodeStore.contains(b)) {
+			IdArray matches = matchIndexed(nodeStore.get(a), nodeStore.get(b), type, firstOnly);
+			if (bothWays && !(firstOnly && !matches.isEmpty())) {
+				matches.addAll(matchIndexed(nodeStore.get(b), nodeStore.get(a), type, firstOnly));
 			}
-		} else if (nodeStore.contains(b)) {
-			Set<Node> endNodes = nodeStore.get(b);
+			return matches;
+		}
+		IdArray matches = match(a, b, type, firstOnly);
+		if (bothWays && !(firstOnly && !matches.isEmpty())) {
+			matches.addAll(match(b, a, type, firstOnly));
+		}
+		return matches;
+	}
+
+	/**
+	 * Match all relationships of a given type from a set of start nodes to
+	 * a set of end nodes by looking up each pair in the edge index.
+	 *
+	 * @param startNodes nodes at which matching relationships start
+	 * @param endNodes nodes at which matching relationships end
+	 * @param type type of matching relationships
+	 * @param firstOnly true to stop at the first match
+	 * @return IDs of matching relationships
+	 */
+	private IdArray matchIndexed(Set<Node> startNodes, Set<Node> endNodes, RelationshipType type, boolean firstOnly) {
+		IdArray matches = new IdArray();
+		RelationshipIndex index = edgeIndex();
+		for (Node startNode : startNodes) {
 			for (Node endNode : endNodes) {
-				for (Relationship candidate : endNode.getRelationships(Direction.INCOMING)) {
-					matches.add(candidate);
+				if (firstOnly && !matches.isEmpty()) {
+					return matches;
+				}
+				IndexHits<Relationship> hits = index.get(EDGE_INDEX_KEY, type.name(), startNode, endNode);
+				try {
+					for (Relationship relationship : hits) {
+						matches.add(relationship.getId());
+					}
+				} finally {
+					hits.close();
 				}
+				statistics.increment(Statistics.EDGE_INDEX_LOOKUPS);
 			}
 		}
 		return matches;
 	}
 
+	private RelationshipIndex edgeIndex() {
+		return relationshipIndex(this.edgeIndexName);
+	}
+
 	/**
 	 * If A and B are both defined, match all relationships between A and B of given type
 	 * If only A is defined, match all outgoing relationships from A of given type
@@ -722,40 +2684,197 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 	 *
 	 * @param a    start node token
 	 * @param b    end node token
-	 * @param type type of matching relationships
-	 * @return list of matching relationships
+	 * @param type type of matching relationships, or null for any type
+	 * @param firstOnly true to stop at the first match
+	 * @return IDs of matching relationships
 	 */
-	private TreeSet<Relationship> match(NodeToken a, NodeToken b, RelationshipType type) {
-		final TreeSet<Relationship> matches = new TreeSet<Relationship>(new RelationshipComparator());
+	private IdArray match(NodeToken a, NodeToken b, RelationshipType type, boolean firstOnly) {
+		final IdArray matches = new IdArray();
 		if (nodeStore.contains(a)) {
 			Set<Node> startNodes = nodeStore.get(a);
 			if (nodeStore.contains(b)) {
-				Set<Node> endNodes = nodeStore.get(b);
-				for (Node startNode : startNodes) {
-					for (Relationship candidate : startNode.getRelationships(Direction.OUTGOING, type)) {
-						if (endNodes.contains(candidate.getEndNode())) {
-							matches.add(candidate);
-						}
-					}
-				}
+				matchBetween(startNodes, nodeStore.get(b), type, firstOnly, matches);
 			} else {
-				for (Node startNode : startNodes) {
-					for (Relationship candidate : startNode.getRelationships(Direction.OUTGOING, type)) {
-						matches.add(candidate);
-					}
+				AdjacencyScan scan = new AdjacencyScan(startNodes, Direction.OUTGOING, type);
+				while (!(firstOnly && !matches.isEmpty()) && scan.next()) {
+					matches.add(scan.relationshipId);
 				}
+				statistics.add(Statistics.RELATIONSHIPS_SCANNED, scan.count);
 			}
 		} else if (nodeStore.contains(b)) {
-			Set<Node> endNodes = nodeStore.get(b);
-			for (Node endNode : endNodes) {
-				for (Relationship candidate : endNode.getRelationships(Direction.INCOMING, type)) {
-					matches.add(candidate);
-				}
+			AdjacencyScan scan = new AdjacencyScan(nodeStore.get(b), Direction.INCOMING, type);
+			while (!(firstOnly && !matches.isEmpty()) && scan.next()) {
+				matches.add(scan.relationshipId);
 			}
+			statistics.add(Statistics.RELATIONSHIPS_SCANNED, scan.count);
 		}
 		return matches;
 	}
 
+	/**
+	 * Fetch relationships by ID, in ascending ID order.
+	 *
+	 * @param ids relationship IDs
+	 * @return the relationships
+	 */
+	private Set<Relationship> relationships(IdArray ids) {
+		int size = ids.size();
+		LinkedHashSet<Relationship> relationships = new LinkedHashSet<Relationship>(size);
+		for (int i = 0; i < size; i++) {
+			relationships.add(graphDB.getRelationshipById(ids.get(i)));
+		}
+		return relationships;
+	}
+
+	private static long id(PropertyContainer entity) {
+		return entity instanceof Node ? ((Node) entity).getId() : ((Relationship) entity).getId();
+	}
+
+	private static IdArray ids(Set<? extends PropertyContainer> entities) {
+		IdArray ids = new IdArray(entities.size());
+		for (PropertyContainer entity : entities) {
+			ids.add(id(entity));
+		}
+		return ids;
+	}
+
+	/**
+	 * Match all relationships from a set of start nodes to a set of end
+	 * nodes. Since node degrees are not known up front, the outgoing
+	 * relationships of the start nodes and the incoming relationships of
+	 * the end nodes are scanned in step; whichever side runs out first
+	 * holds every match, so no more than twice the smaller side's degree
+	 * is ever read.
+	 *
+	 * @param startNodes nodes at which matching relationships start
+	 * @param endNodes nodes at which matching relationships end
+	 * @param type type of matching relationships, or null for any type
+	 * @param matches IDs of matching relationships, added to
+	 */
+	private void matchBetween(Set<Node> startNodes, Set<Node> endNodes, RelationshipType type, boolean firstOnly, IdArray matches) {
+		IdArray startNodeIds = ids(startNodes);
+		IdArray endNodeIds = ids(endNodes);
+		AdjacencyScan outgoing = new AdjacencyScan(startNodes, Direction.OUTGOING, type);
+		AdjacencyScan incoming = new AdjacencyScan(endNodes, Direction.INCOMING, type);
+		IdArray outgoingMatches = new IdArray();
+		IdArray incomingMatches = new IdArray();
+		while (true) {
+			if (!outgoing.next()) {
+				matches.addAll(outgoingMatches);
+				statistics.increment(Statistics.MATCH_START_SCANS);
+				break;
+			}
+			if (endNodeIds.contains(outgoing.otherNodeId)) {
+				outgoingMatches.add(outgoing.relationshipId);
+				if (firstOnly) {
+					matches.addAll(outgoingMatches);
+					statistics.increment(Statistics.MATCH_START_SCANS);
+					break;
+				}
+			}
+			if (!incoming.next()) {
+				matches.addAll(incomingMatches);
+				statistics.increment(Statistics.MATCH_END_SCANS);
+				break;
+			}
+			if (startNodeIds.contains(incoming.otherNodeId)) {
+				incomingMatches.add(incoming.relationshipId);
+				if (firstOnly) {
+					matches.addAll(incomingMatches);
+					statistics.increment(Statistics.MATCH_END_SCANS);
+					break;
+				}
+			}
+		}
+		statistics.add(Statistics.RELATIONSHIPS_SCANNED, outgoing.count + incoming.count);
+	}
+
+	/**
+	 * Lazily iterates the relationships of a set of nodes in one direction,
+	 * counting the relationships read. Relationships are served from the
+	 * adjacency cache where held; otherwise they are read from the database
+	 * and cached once every relationship of a node has been read.
+	 */
+	private class AdjacencyScan {
+
+		private final Iterator<Node> nodes;
+		private final Direction direction;
+		private final RelationshipType type;
+		private final String typeName;
+		private Node node;
+		private AdjacencyCache.Adjacency cached;
+		private int position;
+		private Iterator<Relationship> relationships;
+		private AdjacencyCache.Adjacency filling;
+		private long relationshipId;
+		private long otherNodeId;
+		private long count = 0;
+
+		private AdjacencyScan(Set<Node> nodes, Direction direction, RelationshipType type) {
+			this.nodes = nodes.iterator();
+			this.direction = direction;
+			this.type = type;
+			this.typeName = type == null ? null : type.name();
+		}
+
+		/**
+		 * Move to the next relationship, making its ID and the ID of the node
+		 * at its other end available.
+		 *
+		 * @return false if no relationships remain
+		 */
+		private boolean next() {
+			while (true) {
+				if (cached != null) {
+					if (position < cached.size()) {
+						relationshipId = cached.relationship(position);
+						otherNodeId = cached.otherNode(position);
+						position++;
+						count++;
+						return true;
+					}
+					cached = null;
+				} else if (relationships != null) {
+					if (relationships.hasNext()) {
+						Relationship relationship = relationships.next();
+						relationshipId = relationship.getId();
+						otherNodeId = relationship.getOtherNode(node).getId();
+						if (filling != null) {
+							filling.add(relationshipId, otherNodeId);
+						}
+						count++;
+						return true;
+					}
+					if (filling != null) {
+						adjacencyCache.put(node.getId(), direction, typeName, filling);
+						filling = null;
+					}
+					relationships = null;
+				} else if (nodes.hasNext()) {
+					node = nodes.next();
+					if (adjacencyCache.isEnabled()) {
+						cached = adjacencyCache.get(node.getId(), direction, typeName);
+						if (cached != null) {
+							statistics.increment(Statistics.ADJACENCY_CACHE_HITS);
+							position = 0;
+							continue;
+						}
+						statistics.increment(Statistics.ADJACENCY_CACHE_MISSES);
+						filling = new AdjacencyCache.Adjacency();
+					}
+					if (type == null) {
+						relationships = node.getRelationships(direction).iterator();
+					} else {
+						relationships = node.getRelationships(direction, type).iterator();
+					}
+				} else {
+					return false;
+				}
+			}
+		}
+
+	}
+
 	/**
 	 * Replace all entity properties on a collection of entities.
 	 *
@@ -771,61 +2890,182 @@ public class Neo4jGraphProxy implements GraphProxy<PropertyContainer> {
 	}
 
 	/**
-	 * Replace all entity properties with a new set, as supplied.
+	 * Replace all entity properties with a new set, as supplied. Only keys
+	 * which are added, changed or removed are written; unchanged values,
+	 * including arrays, are left in place. If the current rule is a patch,
+	 * only the keys supplied are touched instead, with null values removing
+	 * the corresponding property. When property writes are deferred, the
+	 * properties are held until the next flush.
 	 *
 	 * @param entity the entity on which to replace properties
 	 * @param properties the new properties
 	 */
 	private void setProperties(PropertyContainer entity, Map<String, Object> properties) {
-		if (properties != null) {
-			for (String key : entity.getPropertyKeys()) {
-				entity.removeProperty(key);
+		if (properties != null && this.maxPendingPropertyWrites > 0) {
+			deferProperties(entity, properties);
+		} else {
+			writeProperties(entity, properties, this.patch);
+		}
+	}
+
+	/**
+	 * Properties waiting to be written to an entity, either as a full set
+	 * or as a patch.
+	 */
+	private static class PendingProperties {
+
+		private final boolean patch;
+		private final HashMap<String, Object> values;
+
+		private PendingProperties(boolean patch, Map<String, Object> values) {
+			this.patch = patch;
+			this.values = new HashMap<String, Object>(values);
+		}
+
+	}
+
+	/**
+	 * Hold properties for an entity until the next flush. A full set
+	 * replaces whatever is pending, whereas a patch is applied on top of
+	 * it, so that the entity ends up as if each rule had been written in
+	 * turn.
+	 */
+	private void deferProperties(PropertyContainer entity, Map<String, Object> properties) {
+		PendingProperties pending = pendingProperties.get(entity);
+		if (pending == null || !this.patch) {
+			pendingProperties.put(entity, new PendingProperties(this.patch, properties));
+		} else {
+			pending.values.putAll(properties);
+		}
+		statistics.increment(Statistics.PROPERTY_WRITES_DEFERRED);
+		if (pendingProperties.size() >= this.maxPendingPropertyWrites) {
+			flushProperties();
+		}
+	}
+
+	/**
+	 * Write all pending properties, once per entity.
+	 */
+	private void flushProperties() {
+		for (Map.Entry<PropertyContainer, PendingProperties> entry : pendingProperties.entrySet()) {
+			writeProperties(entry.getKey(), entry.getValue().values, entry.getValue().patch);
+			statistics.increment(Statistics.ENTITIES_FLUSHED);
+		}
+		pendingProperties.clear();
+	}
+
+	/**
+	 * Write properties to an entity, replacing the existing set or patching
+	 * it as requested.
+	 */
+	private void writeProperties(PropertyContainer entity, Map<String, Object> properties, boolean patch) {
+		if (properties != null && patch) {
+			for (Map.Entry<String, Object> entry : properties.entrySet()) {
+				String key = entry.getKey();
+				Object value = toPropertyValue(entry.getValue());
+				if (value == null) {
+					if (entity.removeProperty(key) != null) {
+						statistics.increment(Statistics.PROPERTIES_REMOVED);
+					}
+				} else if (propertyEquals(entity.getProperty(key, null), value)) {
+					statistics.increment(Statistics.PROPERTIES_UNCHANGED);
+				} else {
+					entity.setProperty(key, value);
+					statistics.increment(Statistics.PROPERTIES_WRITTEN);
+				}
 			}
+		} else if (properties != null) {
+			HashMap<String, Object> values = new HashMap<String, Object>(properties.size());
 			for (Map.Entry<String, Object> entry : properties.entrySet()) {
+				Object value = toPropertyValue(entry.getValue());
+				if (value != null) {
+					values.put(entry.getKey(), value);
+				}
+			}
+			for (String key : entity.getPropertyKeys()) {
+				if (!values.containsKey(key)) {
+					entity.removeProperty(key);
+					statistics.increment(Statistics.PROPERTIES_REMOVED);
+				}
+			}
+			for (Map.Entry<String, Object> entry : values.entrySet()) {
 				String key = entry.getKey();
 				Object value = entry.getValue();
-				if (value == null) {
-					continue;
+				if (propertyEquals(entity.getProperty(key, null), value)) {
+					statistics.increment(Statistics.PROPERTIES_UNCHANGED);
+				} else {
+					entity.setProperty(key, value);
+					statistics.increment(Statistics.PROPERTIES_WRITTEN);
 				}
-				if (value instanceof List) {
-					try {
-						List listValue = (List) value;
-						if (listValue.isEmpty()) {
-							continue;
-						} else if (listValue.get(0) instanceof Boolean) {
-							boolean[] values = new boolean[listValue.size()];
-							for (int i = 0; i < values.length; i++) {
-								values[i] = (Boolean) listValue.get(i);
-							}
-							value = values;
-						} else if (listValue.get(0) instanceof Integer) {
-							int[] values = new int[listValue.size()];
-							for (int i = 0; i < values.length; i++) {
-								values[i] = (Integer) listValue.get(i);
-							}
-							value = values;
-						} else if (listValue.get(0) instanceof Double) {
-							double[] values = new double[listValue.size()];
-							for (int i = 0; i < values.length; i++) {
-								values[i] = (Double) listValue.get(i);
-							}
-							value = values;
-						} else if (listValue.get(0) instanceof String) {
-							String[] values = new String[listValue.size()];
-							for (int i = 0; i < values.length; i++) {
-								values[i] = listValue.get(i).toString();
-							}
-							value = values;
-						} else {
-							throw new IllegalArgumentException("Illegal property type: " + value.getClass().getName());
-						}
-					} catch (ClassCastException ex) {
-						throw new IllegalArgumentException("Illegal combination of list item types", ex);
+			}
+		}
+	}
+
+	/**
+	 * Convert a property value parsed from JSON into a form which can be
+	 * stored, turning lists into primitive or string arrays.
+	 *
+	 * @param value the parsed value
+	 * @return the value to store, or null if nothing should be stored
+	 */
+	private static Object toPropertyValue(Object value) {
+		if (value instanceof List) {
+			try {
+				List listValue = (List) value;
+				if (listValue.isEmpty()) {
+					return null;
+				} else if (listValue.get(0) instanceof Boolean) {
+					boolean[] values = new boolean[listValue.size()];
+					for (int i = 0; i < values.length; i++) {
+						values[i] = (Boolean) listValue.get(i);
+					}
+					return values;
+				} else if (listValue.get(0) instanceof Integer) {
+					int[] values = new int[listValue.size()];
+					for (int i = 0; i < values.length; i++) {
+						values[i] = (Integer) listValue.get(i);
+					}
+					return values;
+				} else if (listValue.get(0) instanceof Double) {
+					double[] values = new double[listValue.size()];
+					for (int i = 0; i < values.length; i++) {
+						values[i] = (Double) listValue.get(i);
 					}
+					return values;
+				} else if (listValue.get(0) instanceof String) {
+					String[] values = new String[listValue.size()];
+					for (int i = 0; i < values.length; i++) {
+						values[i] = listValue.get(i).toString();
+					}
+					return values;
+				} else {
+					throw new IllegalArgumentException("Illegal property type: " + value.getClass().getName());
 				}
-				entity.setProperty(key, value);
+			} catch (ClassCastException ex) {
+				throw new IllegalArgumentException("Illegal combination of list item types", ex);
 			}
 		}
+		return value;
+	}
+
+	/**
+	 * Compare a stored property value with a new one, element by element
+	 * for arrays.
+	 */
+	private static boolean propertyEquals(Object stored, Object value) {
+		if (stored == null) {
+			return false;
+		} else if (value instanceof boolean[]) {
+			return stored instanceof boolean[] && Arrays.equals((boolean[]) stored, (boolean[]) value);
+		} else if (value instanceof int[]) {
+			return stored instanceof int[] && Arrays.equals((int[]) stored, (int[]) value);
+		} else if (value instanceof double[]) {
+			return stored instanceof double[] && Arrays.equals((double[]) stored, (double[]) value);
+		} else if (value instanceof Object[]) {
+			return stored instanceof Object[] && Arrays.equals((Object[]) stored, (Object[]) value);
+		} else {
+			return stored.equals(value);
+		}
 	}
 
 }
@@ -56,6 +56,7 @@ public class Rule {
 
     private final Descriptor descriptor;
     private HashMap<String, Object> data;
+    private boolean patch = false;
 
     public Rule(Descriptor descriptor) {
         this.descriptor = descriptor;
@@ -84,12 +85,27 @@ public class Rule {
         }
     }
 
+    /**
+     * Determine whether the data in this rule is a patch, applied to the
+     * existing properties of an entity rather than replacing them. A patch
+     * sets only the keys given and removes keys whose value is null.
+     *
+     * @return true if this rule patches properties
+     */
+    public boolean isPatch() {
+        return this.patch;
+    }
+
+    public void setPatch(boolean patch) {
+        this.patch = patch;
+    }
+
     @Override
     public String toString() {
         if (this.data == null) {
             return this.descriptor.toString();
         } else {
-            return this.descriptor.toString() + " " + this.data.toString();
+            return this.descriptor.toString() + (this.patch ? " +" : " ") + this.data.toString();
         }
     }
 
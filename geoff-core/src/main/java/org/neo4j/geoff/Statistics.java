@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named counters describing the work done by a {@link GraphProxy}, such as
+ * the number of deadlocks encountered and the number of retries made.
+ *
+ * @author Nigel Small
+ */
+public class Statistics {
+
+	/** Number of deadlocks reported by the database */
+	public static final String DEADLOCKS = "deadlocks";
+
+	/** Number of merges which gave up waiting for a merge lock */
+	public static final String MERGE_LOCK_TIMEOUTS = "merge.lock.timeouts";
+
+	/** Number of times a subgraph was retried following a deadlock */
+	public static final String RETRIES = "retries";
+
+	/** Total time spent backing off between retries, in milliseconds */
+	public static final String RETRY_BACKOFF_MILLIS = "retry.backoff.millis";
+
+	/** Number of entities locked up front when lock ordering is enabled */
+	public static final String LOCKS_ACQUIRED = "locks.acquired";
+
+	/** Number of matches between known nodes resolved from the start node side */
+	public static final String MATCH_START_SCANS = "match.start.scans";
+
+	/** Number of matches between known nodes resolved from the end node side */
+	public static final String MATCH_END_SCANS = "match.end.scans";
+
+	/** Number of relationships read while matching */
+	public static final String RELATIONSHIPS_SCANNED = "relationships.scanned";
+
+	/** Number of node adjacencies served from the adjacency cache */
+	public static final String ADJACENCY_CACHE_HITS = "adjacency.cache.hits";
+
+	/** Number of node adjacencies read from the database while matching */
+	public static final String ADJACENCY_CACHE_MISSES = "adjacency.cache.misses";
+
+	/** Number of start and end node pairs looked up in the edge index */
+	public static final String EDGE_INDEX_LOOKUPS = "edge.index.lookups";
+
+	/** Number of property values set because they were new or changed */
+	public static final String PROPERTIES_WRITTEN = "properties.written";
+
+	/** Number of property values left in place because they were unchanged */
+	public static final String PROPERTIES_UNCHANGED = "properties.unchanged";
+
+	/** Number of properties removed because they were absent from the new set */
+	public static final String PROPERTIES_REMOVED = "properties.removed";
+
+	/** Number of property sets held back for a later flush */
+	public static final String PROPERTY_WRITES_DEFERRED = "property.writes.deferred";
+
+	/** Number of entities whose pending properties have been written */
+	public static final String ENTITIES_FLUSHED = "entities.flushed";
+
+	/** Number of legacy index lookups made against the index itself */
+	public static final String INDEX_LOOKUPS = "index.lookups";
+
+	/** Number of legacy index lookups answered from the index entry cache */
+	public static final String INDEX_CACHE_HITS = "index.cache.hits";
+
+	/** Number of index merges where a Bloom filter ruled out the lookup */
+	public static final String BLOOM_FILTER_LOOKUPS_SAVED = "bloom.filter.lookups.saved";
+
+	/**
+	 * Number of index merges where a Bloom filter allowed a lookup which
+	 * found nothing; the false positive rate is this count divided by the
+	 * sum of this count and the lookups saved
+	 */
+	public static final String BLOOM_FILTER_FALSE_POSITIVES = "bloom.filter.false.positives";
+
+	/** Number of queries resolving several index entries at once */
+	public static final String INDEX_BATCH_QUERIES = "index.batch.queries";
+
+	/** Number of index lookups which stopped reading at the index hit limit */
+	public static final String INDEX_HITS_TRUNCATED = "index.hits.truncated";
+
+	/** Number of queries resolving a composite index key */
+	public static final String INDEX_COMPOSITE_QUERIES = "index.composite.queries";
+
+	/** Number of index queries run by query rules */
+	public static final String INDEX_QUERIES = "index.queries";
+
+	/** Number of query rules run while explaining against an index not created yet, which find nothing */
+	public static final String INDEX_QUERIES_UNEXPLAINED = "index.queries.unexplained";
+
+	/** Number of entities looked up by ID from references in descriptors */
+	public static final String ID_REFERENCES_RESOLVED = "id.references.resolved";
+
+	/** Number of entities bound from names held in a name dictionary */
+	public static final String DICTIONARY_NAMES_RESOLVED = "dictionary.names.resolved";
+
+	/** Number of relationships deleted along with the nodes they attach to */
+	public static final String CASCADE_RELATIONSHIPS_DELETED = "cascade.relationships.deleted";
+
+	/** Number of relationships a cascading delete would have deleted, counted while explaining */
+	public static final String CASCADE_RELATIONSHIPS_COUNTED = "cascade.relationships.counted";
+
+	/** Number of batches of cascading deletions committed part way through a delete */
+	public static final String CASCADE_BATCHES_COMMITTED = "cascade.batches.committed";
+
+	/** Number of nodes created */
+	public static final String NODES_CREATED = "nodes.created";
+
+	/** Number of relationships created */
+	public static final String RELATIONSHIPS_CREATED = "relationships.created";
+
+	private final TreeMap<String, Long> counters = new TreeMap<String, Long>();
+
+	public Statistics() { }
+
+	public Statistics(Statistics statistics) {
+		this.counters.putAll(statistics.counters);
+	}
+
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	public void add(String name, long amount) {
+		Long value = this.counters.get(name);
+		this.counters.put(name, value == null ? amount : value + amount);
+	}
+
+	public long get(String name) {
+		Long value = this.counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * Count the work done since an earlier copy of these statistics was
+	 * taken, leaving out counters which have not changed.
+	 *
+	 * @param earlier the earlier copy
+	 * @return the difference between these statistics and the copy
+	 */
+	public Statistics since(Statistics earlier) {
+		Statistics difference = new Statistics();
+		for (Map.Entry<String, Long> entry : this.counters.entrySet()) {
+			long amount = entry.getValue() - earlier.get(entry.getKey());
+			if (amount != 0) {
+				difference.counters.put(entry.getKey(), amount);
+			}
+		}
+		return difference;
+	}
+
+	public void reset() {
+		this.counters.clear();
+	}
+
+	public Map<String, Long> toMap() {
+		return Collections.unmodifiableMap(this.counters);
+	}
+
+	@Override
+	public String toString() {
+		return this.counters.toString();
+	}
+
+}
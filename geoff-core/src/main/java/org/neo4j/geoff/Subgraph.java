@@ -114,6 +114,7 @@ public class Subgraph implements Iterable<Rule> {
             return;
         }
         text = text.trim();
+        boolean patch = false;
         while (text.length() > 0) {
             int pos;
             char ch = text.charAt(0);
@@ -153,6 +154,13 @@ public class Subgraph implements Iterable<Rule> {
                     throw new SyntaxError("'|' not found");
                 }
                 break;
+            case '+':
+                if (text.length() < 2 || text.charAt(1) != '{') {
+                    throw new SyntaxError("'{' expected after '+'");
+                }
+                text = text.substring(1);
+                patch = true;
+                // fall through to read patch data
             case '{':
                 Map<String, Object> data = null;
                 // look for each '}' in turn, trying to parse
@@ -173,7 +181,8 @@ public class Subgraph implements Iterable<Rule> {
                     throw new SyntaxError("Unparsable JSON: " + text);
                 }
                 // now continue parsing the string
-                addData(data);
+                addData(data, patch);
+                patch = false;
                 text = text.substring(pos + 1).trim();
                 break;
             case '-':
@@ -181,7 +190,7 @@ public class Subgraph implements Iterable<Rule> {
             case '=':
             case '>':
                 pos = 1;
-                while (pos < text.length() && "-<=>".indexOf(text.charAt(pos)) >= 0) {
+                while (pos < text.length() && "-<=>?".indexOf(text.charAt(pos)) >= 0) {
                     pos += 1;
                 }
                 addDescriptor(new Descriptor(text.substring(0, pos)));
@@ -247,7 +256,7 @@ public class Subgraph implements Iterable<Rule> {
         } else {
             Rule lastRule = this.rules.get(this.rules.size() - 1);
             Descriptor lastDescriptor = lastRule.getDescriptor();
-            if (descriptor.startsWith('-', '<', '=', '>') || lastDescriptor.endsWith('-', '<', '=', '>')) {
+            if (descriptor.startsWith('-', '<', '=', '>') || lastDescriptor.endsWith('-', '<', '=', '>', '?')) {
                 lastDescriptor.append(descriptor);
             } else {
                 this.rules.add(new Rule(descriptor));
@@ -262,11 +271,24 @@ public class Subgraph implements Iterable<Rule> {
      * @throws SyntaxError if no rules in Subgraph
      */
     public void addData(Map<String, Object> data) throws SyntaxError {
+        addData(data, false);
+    }
+
+    /**
+     * Merge data with last rule in list, either as a full property set
+     * or as a patch to existing properties.
+     *
+     * @param data data map to merge
+     * @param patch true if the data is a patch
+     * @throws SyntaxError if no rules in Subgraph
+     */
+    public void addData(Map<String, Object> data, boolean patch) throws SyntaxError {
         if (this.rules.isEmpty()) {
             throw new SyntaxError("No rule to merge data into");
         } else {
             Rule lastRule = this.rules.get(this.rules.size() - 1);
             lastRule.putData(data);
+            lastRule.setPatch(patch);
         }
     }
 
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.except;
+
+import java.util.Arrays;
+
+/**
+ * Raised to every member of a group commit when any request within that
+ * group fails, since the shared transaction is rolled back as a whole.
+ */
+public class GroupCommitError extends SubgraphError {
+
+	private final int position;
+	private final int[] failedPositions;
+
+	public GroupCommitError(int position, int[] failedPositions, Throwable throwable) {
+		super(
+			throwable instanceof SubgraphError ? ((SubgraphError) throwable).ruleNumber : 0,
+			String.format("Group commit failed; request %d of group, failed requests %s",
+				position, Arrays.toString(failedPositions)),
+			throwable
+		);
+		this.position = position;
+		this.failedPositions = failedPositions;
+	}
+
+	/**
+	 * @return the position of the receiving request within its group
+	 */
+	public int getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * @return the positions of all requests within the group which failed
+	 */
+	public int[] getFailedPositions() {
+		return this.failedPositions.clone();
+	}
+
+	/**
+	 * @return true if the receiving request was itself one of those which failed
+	 */
+	public boolean isFailedRequest() {
+		for (int failedPosition : this.failedPositions) {
+			if (failedPosition == this.position) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
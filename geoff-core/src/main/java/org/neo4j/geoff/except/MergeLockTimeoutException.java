@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.except;
+
+import org.neo4j.graphdb.TransactionFailureException;
+
+/**
+ * Raised when a merge gives up waiting for another transaction merging
+ * the same key. Unlike a deadlock reported by the database, this is not
+ * retried, since the other transaction may simply be slow.
+ */
+public class MergeLockTimeoutException extends TransactionFailureException {
+
+	public MergeLockTimeoutException(String message) {
+		super(message);
+	}
+
+}
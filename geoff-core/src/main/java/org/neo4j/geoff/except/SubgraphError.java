@@ -28,4 +28,9 @@ public class SubgraphError extends Exception {
 		this.ruleNumber = ruleNumber;
 	}
 
+	public SubgraphError(int ruleNumber, String s, Throwable throwable) {
+		super(s, throwable);
+		this.ruleNumber = ruleNumber;
+	}
+
 }
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.store;
+
+import org.neo4j.graphdb.Direction;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Relationships adjacent to nodes, held as primitive ID arrays and keyed
+ * by node, direction and relationship type. Entries are evicted least
+ * recently used first once the total number of relationships held exceeds
+ * the capacity. The cache is only valid within the transaction which
+ * filled it and must be told of every relationship created or deleted.
+ */
+public class AdjacencyCache {
+
+	/**
+	 * The relationships of one node in one direction, each paired with the
+	 * node at its other end.
+	 */
+	public static class Adjacency {
+
+		private long[] relationships = new long[4];
+		private long[] nodes = new long[4];
+		private int size = 0;
+
+		public void add(long relationshipId, long otherNodeId) {
+			if (size == relationships.length) {
+				relationships = Arrays.copyOf(relationships, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			relationships[size] = relationshipId;
+			nodes[size] = otherNodeId;
+			size++;
+		}
+
+		private boolean remove(long relationshipId) {
+			for (int i = 0; i < size; i++) {
+				if (relationships[i] == relationshipId) {
+					size--;
+					relationships[i] = relationships[size];
+					nodes[i] = nodes[size];
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long relationship(int index) {
+			return relationships[index];
+		}
+
+		public long otherNode(int index) {
+			return nodes[index];
+		}
+
+	}
+
+	private static class Key {
+
+		private final long nodeId;
+		private final Direction direction;
+		private final String type;
+
+		private Key(long nodeId, Direction direction, String type) {
+			this.nodeId = nodeId;
+			this.direction = direction;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return this.nodeId == that.nodeId && this.direction == that.direction &&
+				(this.type == null ? that.type == null : this.type.equals(that.type));
+		}
+
+		@Override
+		public int hashCode() {
+			int h = (int) (nodeId ^ (nodeId >>> 32));
+			h = 31 * h + direction.hashCode();
+			return 31 * h + (type == null ? 0 : type.hashCode());
+		}
+
+	}
+
+	private final LinkedHashMap<Key, Adjacency> entries = new LinkedHashMap<Key, Adjacency>(16, 0.75f, true);
+	private final int capacity;
+	private int total = 0;
+
+	/**
+	 * Create an adjacency cache.
+	 *
+	 * @param capacity maximum number of relationships held, zero to disable
+	 */
+	public AdjacencyCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Look up the relationships of a node.
+	 *
+	 * @param nodeId the node
+	 * @param direction OUTGOING or INCOMING
+	 * @param type relationship type name, or null for all types
+	 * @return the relationships held, or null if not cached
+	 */
+	public Adjacency get(long nodeId, Direction direction, String type) {
+		return entries.get(new Key(nodeId, direction, type));
+	}
+
+	/**
+	 * Hold the complete set of relationships of a node.
+	 *
+	 * @param nodeId the node
+	 * @param direction OUTGOING or INCOMING
+	 * @param type relationship type name, or null for all types
+	 * @param adjacency every relationship of the node in that direction
+	 */
+	public void put(long nodeId, Direction direction, String type, Adjacency adjacency) {
+		if (adjacency.size() <= capacity) {
+			Adjacency previous = entries.put(new Key(nodeId, direction, type), adjacency);
+			if (previous != null) {
+				total -= previous.size();
+			}
+			total += adjacency.size();
+			evict();
+		}
+	}
+
+	public void relationshipCreated(long relationshipId, long startNodeId, long endNodeId, String type) {
+		add(new Key(startNodeId, Direction.OUTGOING, type), relationshipId, endNodeId);
+		add(new Key(startNodeId, Direction.OUTGOING, null), relationshipId, endNodeId);
+		add(new Key(endNodeId, Direction.INCOMING, type), relationshipId, startNodeId);
+		add(new Key(endNodeId, Direction.INCOMING, null), relationshipId, startNodeId);
+		evict();
+	}
+
+	public void relationshipDeleted(long relationshipId, long startNodeId, long endNodeId, String type) {
+		remove(new Key(startNodeId, Direction.OUTGOING, type), relationshipId);
+		remove(new Key(startNodeId, Direction.OUTGOING, null), relationshipId);
+		remove(new Key(endNodeId, Direction.INCOMING, type), relationshipId);
+		remove(new Key(endNodeId, Direction.INCOMING, null), relationshipId);
+	}
+
+	public void clear() {
+		entries.clear();
+		total = 0;
+	}
+
+	private void add(Key key, long relationshipId, long otherNodeId) {
+		Adjacency adjacency = entries.get(key);
+		if (adjacency != null) {
+			adjacency.add(relationshipId, otherNodeId);
+			total++;
+		}
+	}
+
+	private void remove(Key key, long relationshipId) {
+		Adjacency adjacency = entries.get(key);
+		if (adjacency != null && adjacency.remove(relationshipId)) {
+			total--;
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, Adjacency>> iterator = entries.entrySet().iterator();
+		while (total > capacity && iterator.hasNext()) {
+			total -= iterator.next().getValue().size();
+			iterator.remove();
+		}
+	}
+
+}
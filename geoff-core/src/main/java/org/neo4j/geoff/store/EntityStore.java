@@ -19,37 +19,154 @@
  */
 package org.neo4j.geoff.store;
 
-import org.neo4j.geoff.util.SparseArray;
+import org.neo4j.geoff.util.IdArray;
+import org.neo4j.geoff.util.MappedIdMap;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
 
-import java.util.HashSet;
+import java.io.File;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 
-public class EntityStore<K extends EntityToken, V> {
+/**
+ * Bindings of entity names to entities, held as primitive IDs. Each name
+ * maps to a dense array of positional slots, so that (A.1), (A.2) and so
+ * on each address a single slot; a set of entities bound under a name is
+ * numbered in ascending ID order. Sets returned are read-only views over
+ * the IDs held, resolving each entity only when iterated.
+ *
+ * A store may be given a heap budget, beyond which names bound to a
+ * single entity are spilled to a memory-mapped map outside the heap.
+ *
+ * A store may also be marked, after which the earlier binding of each
+ * name changed is journalled so that the store can be reset to the mark.
+ */
+public abstract class EntityStore<K extends EntityToken, V extends PropertyContainer> {
+
+	private static final long NONE = -1;
+
+	public static EntityStore<NodeToken, Node> forNodes(final GraphDatabaseService graphDB) {
+		return new EntityStore<NodeToken, Node>() {
+
+			@Override
+			protected long id(Object entity) {
+				return entity instanceof Node ? ((Node) entity).getId() : NONE;
+			}
+
+			@Override
+			protected Node entity(long id) {
+				return graphDB.getNodeById(id);
+			}
+
+		};
+	}
 
-	private final TreeMap<String, SparseArray<V>> items = new TreeMap<String, SparseArray<V>>();
+	public static EntityStore<RelationshipToken, Relationship> forRelationships(final GraphDatabaseService graphDB) {
+		return new EntityStore<RelationshipToken, Relationship>() {
+
+			@Override
+			protected long id(Object entity) {
+				return entity instanceof Relationship ? ((Relationship) entity).getId() : NONE;
+			}
 
-	public EntityStore() {
-		super();
+			@Override
+			protected Relationship entity(long id) {
+				return graphDB.getRelationshipById(id);
+			}
+
+		};
+	}
+
+	private final TreeMap<String, Binding> items = new TreeMap<String, Binding>();
+	private int heapBudget = Integer.MAX_VALUE;
+	private File spillDirectory = null;
+	private MappedIdMap spilled = null;
+	private TreeMap<String, long[]> journal = null;
+
+	/**
+	 * Determine the ID of an entity held by this store.
+	 *
+	 * @param entity the entity
+	 * @return the entity ID, or -1 if not an entity of the type held
+	 */
+	protected abstract long id(Object entity);
+
+	protected abstract V entity(long id);
+
+	/**
+	 * Limit the number of names held on the heap. Once the limit is
+	 * reached, further names bound to a single entity are held in
+	 * memory-mapped temporary files instead.
+	 *
+	 * @param heapBudget maximum number of names held on the heap
+	 * @param spillDirectory directory for temporary files, or null for
+	 *                       the system default
+	 */
+	public void setHeapBudget(int heapBudget, File spillDirectory) {
+		this.heapBudget = heapBudget;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Count the names held outside the heap.
+	 *
+	 * @return number of names spilled
+	 */
+	public long spilledSize() {
+		return spilled == null ? 0 : spilled.size();
+	}
+
+	private boolean isBound(String key) {
+		return items.containsKey(key) || (spilled != null && spilled.containsKey(key));
+	}
+
+	private boolean bind(String key, long[] ids) {
+		if (ids.length == 1 && items.size() >= heapBudget) {
+			if (spilled == null) {
+				spilled = new MappedIdMap(spillDirectory);
+			}
+			return spilled.put(key, ids[0]);
+		} else {
+			items.put(key, new Binding(ids));
+			return true;
+		}
+	}
+
+	/**
+	 * Find the binding held on the heap for a name, bringing it back
+	 * from the spill map if necessary so that its slots can be changed.
+	 */
+	private Binding binding(String key) {
+		Binding binding = items.get(key);
+		if (binding == null && spilled != null) {
+			long id = spilled.remove(key);
+			if (id >= 0) {
+				binding = new Binding(new long[] {id});
+				items.put(key, binding);
+			}
+		}
+		return binding;
 	}
 
 	public boolean put(K token, V item) {
 		if (token.hasName() && item != null) {
 			String key = token.getName();
 			int index = token.getIndex();
+			journal(key);
 			if (index == 0) {
-				if (items.containsKey(key)) {
-					return false;
-				} else {
-					items.put(key, new SparseArray<V>(item));
-					return true;
-				}
+				return !isBound(key) && bind(key, new long[] {id(item)});
 			} else {
-				if (!items.containsKey(key)) {
-					items.put(key, new SparseArray<V>());
+				if (binding(key) == null) {
+					items.put(key, new Binding(new long[0]));
 				}
-				return items.get(key).put(index, item);
+				return items.get(key).put(index, id(item));
 			}
 		} else {
 			return false;
@@ -57,22 +174,31 @@ public class EntityStore<K extends EntityToken, V> {
 	}
 
 	public boolean put(K token, Set<V> items) {
-		if (token.hasName() && items != null && !items.isEmpty()) {
+		return items != null && put(token, ids(items));
+	}
+
+	/**
+	 * Bind a name to entities given by ID, as for {@link #put(EntityToken,
+	 * Set)}, without resolving the entities.
+	 *
+	 * @param token the name to bind
+	 * @param entityIds IDs of the entities to bind
+	 * @return true if the name was bound
+	 */
+	public boolean put(K token, IdArray entityIds) {
+		if (token.hasName() && !entityIds.isEmpty()) {
+			long[] ids = entityIds.toArray();
 			String key = token.getName();
 			int index = token.getIndex();
+			journal(key);
 			if (index == 0) {
-				if (this.items.containsKey(key)) {
-					return false;
-				} else {
-					this.items.put(key, new SparseArray<V>(items));
-					return true;
-				}
+				return !isBound(key) && bind(key, ids);
 			} else {
-				// just put single item into slot
-				for (V item : items) {
-					return put(token, item);
+				// just put the lowest ID into the slot
+				if (binding(key) == null) {
+					this.items.put(key, new Binding(new long[0]));
 				}
-				return false;
+				return this.items.get(key).put(index, ids[0]);
 			}
 		} else {
 			return false;
@@ -80,63 +206,343 @@ public class EntityStore<K extends EntityToken, V> {
 	}
 
 	public Set<V> get(K token) {
-		HashSet<V> n = new HashSet<V>();
 		String key = token.getName();
 		int index = token.getIndex();
-		if (index == 0) {
-			n.addAll(items.get(key).toList());
+		Binding binding = items.get(key);
+		if (binding == null) {
+			return new EntitySet(single(spilled.get(key)));
+		} else if (index == 0) {
+			return new EntitySet(binding.ids());
 		} else {
-			n.add(items.get(key).get(index));
+			return new EntitySet(single(binding.get(index)));
 		}
-		return n;
 	}
 
 	public Set<V> remove(K token) {
-		HashSet<V> n = new HashSet<V>();
+		IdArray ids = new IdArray(1);
 		if (token.hasName()) {
 			String key = token.getName();
 			int index = token.getIndex();
-			if (index == 0) {
-				if (items.containsKey(key)) {
-					n.addAll(items.get(key).toList());
+			journal(key);
+			Binding binding = binding(key);
+			if (binding != null) {
+				if (index == 0) {
+					ids = binding.ids();
 					items.remove(key);
+				} else if (binding.hasIndex(index)) {
+					ids = single(binding.remove(index));
 				}
+			}
+		}
+		return new EntitySet(ids);
+	}
+
+	public void clear() {
+		items.clear();
+		journal = null;
+		if (spilled != null) {
+			spilled.close();
+			spilled = null;
+		}
+	}
+
+	/**
+	 * Start journalling changes, so that the store can later be returned
+	 * to its current state by {@link #reset()}. Only names changed after
+	 * the mark are copied, whether held on the heap or spilled.
+	 */
+	public void mark() {
+		journal = new TreeMap<String, long[]>();
+	}
+
+	/**
+	 * Return every name changed since the last {@link #mark()} to its
+	 * binding at the time, keeping the mark.
+	 */
+	public void reset() {
+		if (journal == null) {
+			throw new IllegalStateException("Store has not been marked");
+		}
+		for (Map.Entry<String, long[]> entry : journal.entrySet()) {
+			String key = entry.getKey();
+			long[] slots = entry.getValue();
+			items.remove(key);
+			if (spilled != null) {
+				spilled.remove(key);
+			}
+			if (slots == null) {
+				continue;
+			} else if (slots.length == 1 && slots[0] != NONE) {
+				bind(key, slots);
 			} else {
-				if (items.containsKey(key) && items.get(key).hasIndex(index)) {
-					n.add(items.get(key).remove(index));
-				}
+				items.put(key, new Binding(slots));
+			}
+		}
+		journal.clear();
+	}
+
+	/**
+	 * Stop journalling changes and forget the last {@link #mark()}.
+	 */
+	public void unmark() {
+		journal = null;
+	}
+
+	/**
+	 * Copy the binding of a name before its first change since the mark,
+	 * or note that it was unbound.
+	 */
+	private void journal(String key) {
+		if (journal != null && !journal.containsKey(key)) {
+			Binding binding = items.get(key);
+			if (binding != null) {
+				journal.put(key, binding.slots.clone());
+			} else if (spilled != null && spilled.containsKey(key)) {
+				journal.put(key, new long[] {spilled.get(key)});
+			} else {
+				journal.put(key, null);
 			}
 		}
-		return n;
 	}
 
 	public boolean contains(K token) {
 		String key = token.getName();
 		int index = token.getIndex();
-		if (index == 0) {
-			return token.hasName() && items.containsKey(key);
+		if (!token.hasName()) {
+			return false;
+		} else if (items.containsKey(key)) {
+			return index == 0 || items.get(key).hasIndex(index);
 		} else {
-			return token.hasName() && items.containsKey(key) && items.get(key).hasIndex(index);
+			// a spilled name is bound to a single entity, in slot 1
+			return index <= 1 && spilled != null && spilled.containsKey(key);
 		}
 	}
 	
 	public Map<String, V> toMap() {
 		Map<String, V> map = new TreeMap<String, V>();
-		for (Map.Entry<String, SparseArray<V>> entry : items.entrySet()) {
-			String key = entry.getKey();
-			Map<Integer, V> values = entry.getValue().toMap();
-			boolean single = values.size() == 1 && values.containsKey(1);
-			for (Map.Entry<Integer, V> subentry : values.entrySet()) {
-				int index = subentry.getKey();
-				V value = subentry.getValue();
-				if (single) {
-					map.put(key, value);
-				} else {
-					map.put(key + '.' + index, value);
-				}
+		for (Map.Entry<String, Long> entry : toIdMap().entrySet()) {
+			map.put(entry.getKey(), entity(entry.getValue()));
+		}
+		return map;
+	}
+
+	/**
+	 * Map each name bound, qualified by position where a name is bound
+	 * to more than one entity, to the ID of its entity.
+	 *
+	 * @return map of names to IDs
+	 */
+	public Map<String, Long> toIdMap() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<String, Binding> entry : items.entrySet()) {
+			putIds(entry.getKey(), entry.getValue().slots, map);
+		}
+		if (spilled != null) {
+			Iterator<String> keys = spilled.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				map.put(key, spilled.get(key));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Count the names bound, qualified by position where a name is bound
+	 * to more than one entity, as for {@link #toIdMap()}.
+	 *
+	 * @return number of names
+	 */
+	public long size() {
+		long size = spilledSize();
+		for (Binding binding : items.values()) {
+			size += binding.ids().size();
+		}
+		return size;
+	}
+
+	/**
+	 * Map each name changed since the last {@link #mark()} and still bound
+	 * to IDs as for {@link #toIdMap()}.
+	 *
+	 * @return map of names to IDs
+	 */
+	public Map<String, Long> toChangedIdMap() {
+		if (journal == null) {
+			throw new IllegalStateException("Store has not been marked");
+		}
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (String key : journal.keySet()) {
+			Binding binding = items.get(key);
+			if (binding != null) {
+				putIds(key, binding.slots, map);
+			} else if (spilled != null && spilled.containsKey(key)) {
+				map.put(key, spilled.get(key));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Map a single bound name, or a single position within it, to IDs as
+	 * for {@link #toIdMap()}.
+	 *
+	 * @param token the name to look up
+	 * @return map of names to IDs, empty if the name is not bound
+	 */
+	public Map<String, Long> toIdMap(K token) {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		if (contains(token)) {
+			String key = token.getName();
+			int index = token.getIndex();
+			Binding binding = items.get(key);
+			if (binding == null) {
+				map.put(index == 0 ? key : key + '.' + index, spilled.get(key));
+			} else if (index == 0) {
+				putIds(key, binding.slots, map);
+			} else {
+				map.put(key + '.' + index, binding.get(index));
 			}
 		}
 		return map;
 	}
 
+	private static void putIds(String key, long[] slots, Map<String, Long> map) {
+		boolean single = slots.length == 1;
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] == NONE) {
+				continue;
+			}
+			if (single) {
+				map.put(key, slots[i]);
+			} else {
+				map.put(key + '.' + (i + 1), slots[i]);
+			}
+		}
+	}
+
+	private IdArray ids(Set<V> entities) {
+		if (entities instanceof EntityStore<?, ?>.EntitySet) {
+			return ((EntityStore<?, ?>.EntitySet) entities).ids;
+		}
+		IdArray ids = new IdArray(entities.size());
+		for (V entity : entities) {
+			ids.add(id(entity));
+		}
+		return ids;
+	}
+
+	private static IdArray single(long id) {
+		IdArray ids = new IdArray(1);
+		ids.add(id);
+		return ids;
+	}
+
+	/**
+	 * The slots bound to a single name, with the sorted and distinct IDs
+	 * they hold built on demand.
+	 */
+	private static class Binding {
+
+		private long[] slots;
+		private IdArray ids = null;
+
+		Binding(long[] slots) {
+			this.slots = slots;
+		}
+
+		boolean hasIndex(int index) {
+			return index <= slots.length && slots[index - 1] != NONE;
+		}
+
+		long get(int index) {
+			return slots[index - 1];
+		}
+
+		boolean put(int index, long id) {
+			if (hasIndex(index)) {
+				return false;
+			}
+			if (index > slots.length) {
+				int length = slots.length;
+				slots = Arrays.copyOf(slots, index);
+				Arrays.fill(slots, length, index, NONE);
+			}
+			slots[index - 1] = id;
+			ids = null;
+			return true;
+		}
+
+		long remove(int index) {
+			long id = slots[index - 1];
+			slots[index - 1] = NONE;
+			ids = null;
+			return id;
+		}
+
+		IdArray ids() {
+			if (ids == null) {
+				ids = new IdArray(slots.length);
+				for (long id : slots) {
+					if (id != NONE) {
+						ids.add(id);
+					}
+				}
+			}
+			return ids;
+		}
+
+	}
+
+	/**
+	 * A read-only set of entities over a sorted array of IDs.
+	 */
+	private class EntitySet extends AbstractSet<V> {
+
+		private final IdArray ids;
+
+		EntitySet(IdArray ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public int size() {
+			return ids.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			long id = id(o);
+			return id != NONE && ids.contains(id);
+		}
+
+		@Override
+		public Iterator<V> iterator() {
+			return new Iterator<V>() {
+
+				private int i = 0;
+
+				@Override
+				public boolean hasNext() {
+					return i < ids.size();
+				}
+
+				@Override
+				public V next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return entity(ids.get(i++));
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+			};
+		}
+
+	}
+
 }
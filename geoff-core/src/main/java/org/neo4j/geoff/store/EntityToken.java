@@ -40,14 +40,40 @@ public abstract class EntityToken extends NameableToken {
 	}
 
 	protected final int index;
+	protected final long id;
 	
 	public EntityToken(Type tokenType, String name) {
-		super(tokenType, beforeDot(name));
-		this.index = afterDot(name);
+		this(tokenType, name, -1);
+	}
+
+	/**
+	 * Create a token addressing an existing entity by ID. A token with an
+	 * ID but no name is named after its ID, so that later rules may refer
+	 * to the same entity as, for example, (@123).
+	 */
+	public EntityToken(Type tokenType, String name, long id) {
+		super(tokenType, id >= 0 && name.isEmpty() ? "@" + id : beforeDot(name));
+		this.index = id >= 0 && name.isEmpty() ? 0 : afterDot(name);
+		this.id = id;
 	}
 
 	public int getIndex() {
 		return this.index;
 	}
 
+	public boolean hasId() {
+		return this.id >= 0;
+	}
+
+	public long getId() {
+		return this.id;
+	}
+
+	protected void appendId(StringBuilder str) {
+		if (this.id >= 0 && !this.name.equals("@" + this.id)) {
+			str.append('@');
+			str.append(this.id);
+		}
+	}
+
 }
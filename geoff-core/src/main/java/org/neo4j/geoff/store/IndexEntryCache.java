@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.store;
+
+import org.neo4j.geoff.util.IdArray;
+
+import java.util.HashMap;
+
+/**
+ * Entries of legacy indexes known within a transaction, keyed by index,
+ * key and value, each holding the complete set of IDs of the entities
+ * indexed under that key and value. Values are compared by their string
+ * form, as in exact indexes. Entries are only ever held in full, so
+ * additions and removals are applied to entries already held and ignored
+ * otherwise.
+ */
+public class IndexEntryCache {
+
+	private static class Key {
+
+		private final String index;
+		private final boolean relationships;
+		private final String key;
+		private final String value;
+
+		private Key(String index, boolean relationships, String key, Object value) {
+			this.index = index;
+			this.relationships = relationships;
+			this.key = key;
+			this.value = String.valueOf(value);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return this.relationships == that.relationships && this.index.equals(that.index) &&
+				this.key.equals(that.key) && this.value.equals(that.value);
+		}
+
+		@Override
+		public int hashCode() {
+			int h = index.hashCode();
+			h = 31 * h + (relationships ? 1 : 0);
+			h = 31 * h + key.hashCode();
+			return 31 * h + value.hashCode();
+		}
+
+	}
+
+	private final HashMap<Key, IdArray> entries = new HashMap<Key, IdArray>();
+
+	/**
+	 * Look up the entities indexed under a key and value.
+	 *
+	 * @param index name of the index
+	 * @param relationships true for a relationship index, false for a node index
+	 * @param key the index key
+	 * @param value the index value
+	 * @return IDs of all entities indexed, or null if not known
+	 */
+	public IdArray get(String index, boolean relationships, String key, Object value) {
+		return entries.get(new Key(index, relationships, key, value));
+	}
+
+	/**
+	 * Hold the complete set of entities indexed under a key and value.
+	 */
+	public void put(String index, boolean relationships, String key, Object value, IdArray ids) {
+		entries.put(new Key(index, relationships, key, value), ids);
+	}
+
+	public void added(String index, boolean relationships, String key, Object value, long id) {
+		IdArray ids = entries.get(new Key(index, relationships, key, value));
+		if (ids != null) {
+			ids.add(id);
+		}
+	}
+
+	public void removed(String index, boolean relationships, String key, Object value, long id) {
+		IdArray ids = entries.get(new Key(index, relationships, key, value));
+		if (ids != null) {
+			ids.remove(id);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+}
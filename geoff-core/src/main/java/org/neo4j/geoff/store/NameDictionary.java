@@ -0,0 +1,422 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.store;
+
+import org.neo4j.geoff.util.IdArray;
+import org.neo4j.geoff.util.MappedIdMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A persistent dictionary of entity names and the IDs of the nodes and
+ * relationships they were last bound to, shared by successive loads so
+ * that a name bound in one load can be referred to by a later one. The
+ * dictionary is an append-only file of bindings, removals and entity
+ * deletions, replayed when opened into maps held in temporary files
+ * outside the heap; a record cut short by a crash is discarded. A name
+ * whose entity has been deleted through a proxy since the name was bound
+ * is treated as unknown, so that it cannot come to refer to a later
+ * entity given the same ID; entities deleted by other means are not
+ * seen. A dictionary is compacted when opened if it holds more superseded
+ * records than live bindings. A dictionary may be shared by proxies in
+ * several threads.
+ */
+public class NameDictionary {
+
+	private static final long MAGIC = 0x47454f4646444943L; // GEOFFDIC
+	private static final int VERSION = 1;
+	private static final long HEADER_LENGTH = 12;
+
+	private static final byte NODE = 'N';
+	private static final byte RELATIONSHIP = 'R';
+	private static final byte NODE_REMOVED = 'n';
+	private static final byte RELATIONSHIP_REMOVED = 'r';
+	private static final byte NODE_DELETED = 'D';
+	private static final byte RELATIONSHIP_DELETED = 'E';
+
+	/**
+	 * Number of superseded records below which a dictionary is never
+	 * compacted, however few live bindings it holds.
+	 */
+	private static final long COMPACTION_THRESHOLD = 4096;
+
+	private final Names nodes;
+	private final Names relationships;
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+	private long records;
+
+	/**
+	 * Open a dictionary file, creating it if it does not yet exist.
+	 *
+	 * @param path the dictionary file
+	 * @return the dictionary, with all bindings previously written
+	 * @throws IOException if the file cannot be read or is not a dictionary
+	 */
+	public static NameDictionary open(File path) throws IOException {
+		Names nodes = new Names();
+		Names relationships = new Names();
+		Replay replay = null;
+		if (path.exists() && path.length() > 0) {
+			replay = replay(path, nodes, relationships);
+			long live = nodes.size() + relationships.size();
+			long superseded = replay.records - live;
+			if (superseded > COMPACTION_THRESHOLD && superseded > live) {
+				compact(path, nodes, relationships);
+				nodes.close();
+				relationships.close();
+				nodes = new Names();
+				relationships = new Names();
+				replay = replay(path, nodes, relationships);
+			}
+			// drop any incomplete record left at the end
+			RandomAccessFile file = new RandomAccessFile(path, "rw");
+			try {
+				file.setLength(replay.length);
+			} finally {
+				file.close();
+			}
+		}
+		FileOutputStream file = new FileOutputStream(path, true);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		if (replay == null) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.flush();
+		}
+		return new NameDictionary(nodes, relationships, file, out, replay == null ? 0 : replay.records);
+	}
+
+	/**
+	 * The extent of the complete records read from a dictionary file.
+	 */
+	private static class Replay {
+
+		private long length = HEADER_LENGTH;
+		private long records = 0;
+
+	}
+
+	private static Replay replay(File path, Names nodes, Names relationships) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a name dictionary: " + path);
+			}
+			Replay replay = new Replay();
+			while (true) {
+				long recordLength;
+				try {
+					byte kind = in.readByte();
+					String name;
+					switch (kind) {
+					case NODE:
+						name = in.readUTF();
+						nodes.bind(name, in.readLong(), replay.records);
+						recordLength = 1 + 2 + utfLength(name) + 8;
+						break;
+					case RELATIONSHIP:
+						name = in.readUTF();
+						relationships.bind(name, in.readLong(), replay.records);
+						recordLength = 1 + 2 + utfLength(name) + 8;
+						break;
+					case NODE_REMOVED:
+						name = in.readUTF();
+						nodes.unbind(name);
+						recordLength = 1 + 2 + utfLength(name);
+						break;
+					case RELATIONSHIP_REMOVED:
+						name = in.readUTF();
+						relationships.unbind(name);
+						recordLength = 1 + 2 + utfLength(name);
+						break;
+					case NODE_DELETED:
+						nodes.deleted(in.readLong(), replay.records);
+						recordLength = 1 + 8;
+						break;
+					case RELATIONSHIP_DELETED:
+						relationships.deleted(in.readLong(), replay.records);
+						recordLength = 1 + 8;
+						break;
+					default:
+						return replay;
+					}
+				} catch (EOFException e) {
+					return replay;
+				}
+				replay.length += recordLength;
+				replay.records++;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replace a dictionary file with one holding only the names which are
+	 * still bound to entities not since deleted.
+	 */
+	private static void compact(File path, Names nodes, Names relationships) throws IOException {
+		File compacted = new File(path.getPath() + ".compact");
+		FileOutputStream file = new FileOutputStream(compacted);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			nodes.write(out, NODE);
+			relationships.write(out, RELATIONSHIP);
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!compacted.renameTo(path)) {
+			compacted.delete();
+			throw new IOException("Cannot replace name dictionary: " + path);
+		}
+	}
+
+	private static int utfLength(String name) {
+		int length = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (ch >= 0x0001 && ch <= 0x007F) {
+				length += 1;
+			} else if (ch > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private NameDictionary(Names nodes, Names relationships, FileOutputStream file, DataOutputStream out, long records) {
+		this.nodes = nodes;
+		this.relationships = relationships;
+		this.file = file;
+		this.out = out;
+		this.records = records;
+	}
+
+	/**
+	 * Look up the node last bound to a name.
+	 *
+	 * @param name the name, as in (name) or (name.n)
+	 * @return the node ID, or -1 if unknown or since deleted
+	 */
+	public synchronized long nodeId(String name) {
+		return this.nodes.get(name);
+	}
+
+	/**
+	 * Look up the relationship last bound to a name.
+	 *
+	 * @param name the name, as in [name] or [name.n]
+	 * @return the relationship ID, or -1 if unknown or since deleted
+	 */
+	public synchronized long relationshipId(String name) {
+		return this.relationships.get(name);
+	}
+
+	public synchronized long nodeCount() {
+		return this.nodes.size();
+	}
+
+	public synchronized long relationshipCount() {
+		return this.relationships.size();
+	}
+
+	/**
+	 * Record the names bound or rebound by a committed transaction, the
+	 * names of entities it deleted by name and the IDs of all entities it
+	 * deleted, forcing them to disk. Bindings which are unchanged are not
+	 * written again.
+	 *
+	 * @param nodeIds names bound to nodes
+	 * @param relationshipIds names bound to relationships
+	 * @param removedNodeNames names of deleted nodes
+	 * @param removedRelationshipNames names of deleted relationships
+	 * @param deletedNodeIds IDs of deleted nodes
+	 * @param deletedRelationshipIds IDs of deleted relationships
+	 * @throws IOException if the dictionary cannot be written
+	 */
+	public synchronized void record(Map<String, Long> nodeIds, Map<String, Long> relationshipIds,
+	                                Iterable<String> removedNodeNames, Iterable<String> removedRelationshipNames,
+	                                IdArray deletedNodeIds, IdArray deletedRelationshipIds)
+		throws IOException
+	{
+		boolean written = false;
+		for (String name : removedNodeNames) {
+			if (!nodeIds.containsKey(name) && this.nodes.unbind(name)) {
+				writeName(NODE_REMOVED, name);
+				written = true;
+			}
+		}
+		for (String name : removedRelationshipNames) {
+			if (!relationshipIds.containsKey(name) && this.relationships.unbind(name)) {
+				writeName(RELATIONSHIP_REMOVED, name);
+				written = true;
+			}
+		}
+		for (Map.Entry<String, Long> entry : nodeIds.entrySet()) {
+			if (this.nodes.bind(entry.getKey(), entry.getValue(), this.records)) {
+				writeName(NODE, entry.getKey());
+				this.out.writeLong(entry.getValue());
+				written = true;
+			}
+		}
+		for (Map.Entry<String, Long> entry : relationshipIds.entrySet()) {
+			if (this.relationships.bind(entry.getKey(), entry.getValue(), this.records)) {
+				writeName(RELATIONSHIP, entry.getKey());
+				this.out.writeLong(entry.getValue());
+				written = true;
+			}
+		}
+		// deletions follow bindings, so that a name bound to an entity
+		// deleted by the same transaction is not taken as current
+		for (int i = 0; i < deletedNodeIds.size(); i++) {
+			this.nodes.deleted(deletedNodeIds.get(i), this.records);
+			writeId(NODE_DELETED, deletedNodeIds.get(i));
+			written = true;
+		}
+		for (int i = 0; i < deletedRelationshipIds.size(); i++) {
+			this.relationships.deleted(deletedRelationshipIds.get(i), this.records);
+			writeId(RELATIONSHIP_DELETED, deletedRelationshipIds.get(i));
+			written = true;
+		}
+		if (written) {
+			this.out.flush();
+			this.file.getFD().sync();
+		}
+	}
+
+	private void writeName(byte kind, String name) throws IOException {
+		this.out.writeByte(kind);
+		this.out.writeUTF(name);
+		this.records++;
+	}
+
+	private void writeId(byte kind, long id) throws IOException {
+		this.out.writeByte(kind);
+		this.out.writeLong(id);
+		this.records++;
+	}
+
+	public synchronized void close() throws IOException {
+		this.out.close();
+		this.nodes.close();
+		this.relationships.close();
+	}
+
+	/**
+	 * The names bound to entities of one kind. Each binding and each
+	 * entity deletion carries the number of the record which made it, so
+	 * that a name is known to be stale where its entity was deleted after
+	 * it was bound.
+	 */
+	private static class Names {
+
+		private final MappedIdMap ids = new MappedIdMap(null);
+		private final MappedIdMap boundAt = new MappedIdMap(null);
+		private final MappedIdMap deletedAt = new MappedIdMap(null);
+
+		long size() {
+			return this.ids.size();
+		}
+
+		/**
+		 * Look up the entity bound to a name, unless it has since been
+		 * deleted.
+		 */
+		long get(String name) {
+			long id = this.ids.get(name);
+			if (id >= 0 && this.deletedAt.get(Long.toString(id)) > this.boundAt.get(name)) {
+				return -1;
+			}
+			return id;
+		}
+
+		/**
+		 * Bind a name by a given record, unless already bound to the same
+		 * entity.
+		 *
+		 * @return true if the binding is new and should be written
+		 */
+		boolean bind(String name, long id, long record) {
+			if (get(name) == id) {
+				return false;
+			}
+			unbind(name);
+			this.ids.put(name, id);
+			this.boundAt.put(name, record);
+			return true;
+		}
+
+		/**
+		 * @return true if the name was held, so its removal should be written
+		 */
+		boolean unbind(String name) {
+			this.boundAt.remove(name);
+			return this.ids.remove(name) >= 0;
+		}
+
+		void deleted(long id, long record) {
+			String key = Long.toString(id);
+			this.deletedAt.remove(key);
+			this.deletedAt.put(key, record);
+		}
+
+		/**
+		 * Write a binding record for every name not since deleted.
+		 */
+		void write(DataOutputStream out, byte kind) throws IOException {
+			Iterator<String> names = this.ids.keys();
+			while (names.hasNext()) {
+				String name = names.next();
+				long id = get(name);
+				if (id >= 0) {
+					out.writeByte(kind);
+					out.writeUTF(name);
+					out.writeLong(id);
+				}
+			}
+		}
+
+		void close() {
+			this.ids.close();
+			this.boundAt.close();
+			this.deletedAt.close();
+		}
+
+	}
+
+}
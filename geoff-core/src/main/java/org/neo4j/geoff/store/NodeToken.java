@@ -19,6 +19,10 @@
  */
 package org.neo4j.geoff.store;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class NodeToken extends EntityToken {
 
 	private static final NodeToken ANONYMOUS = new NodeToken("");
@@ -26,18 +30,47 @@ public class NodeToken extends EntityToken {
 	public static NodeToken anon() {
 		return ANONYMOUS;
 	}
-	
+
+	protected final List<String> labels;
+
 	public NodeToken(String name) {
 		super(Type.NODE, name);
+		this.labels = Collections.emptyList();
+	}
+
+	public NodeToken(String name, String... labels) {
+		super(Type.NODE, name);
+		this.labels = Collections.unmodifiableList(Arrays.asList(labels));
+	}
+
+	public NodeToken(String name, long id, String... labels) {
+		super(Type.NODE, name, id);
+		this.labels = Collections.unmodifiableList(Arrays.asList(labels));
+	}
+
+	public boolean hasLabels() {
+		return !this.labels.isEmpty();
+	}
+
+	public List<String> getLabels() {
+		return this.labels;
 	}
 
 	@Override
 	public String toString() {
-		if (this.index == 0) {
-			return String.format("(%s)", this.name);
-		} else {
-			return String.format("(%s.%d)", this.name, this.index);
+		StringBuilder str = new StringBuilder("(");
+		str.append(this.name);
+		if (this.index > 0) {
+			str.append('.');
+			str.append(this.index);
+		}
+		appendId(str);
+		for (String label : this.labels) {
+			str.append(':');
+			str.append(label);
 		}
+		str.append(')');
+		return str.toString();
 	}
 
 }
@@ -39,6 +39,11 @@ public class RelationshipToken extends EntityToken {
 		this.type = type;
 	}
 
+	public RelationshipToken(String name, long id, String type) {
+		super(Type.REL, name, id);
+		this.type = type;
+	}
+
 	public RelationshipToken(String name) {
 		super(Type.REL, name);
 		this.type = null;
@@ -60,6 +65,7 @@ public class RelationshipToken extends EntityToken {
 			str.append('.');
 			str.append(index);
 		}
+		appendId(str);
 		if(this.type != null && !this.type.isEmpty()) {
 			str.append(':');
 			str.append(this.type);
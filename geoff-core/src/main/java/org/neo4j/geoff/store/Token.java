@@ -29,7 +29,8 @@ public class Token {
 		CONNECTS('-'),
 		TO('>'),
 		FROM('<'),
-		IS_ENTRY_IN('^');
+		IS_ENTRY_IN('^'),
+		IS_HIT_IN('?');
 
 		private final char symbol;
 
@@ -70,6 +70,9 @@ public class TokenReader extends UeberReader {
                     if (peek() == '=') {
                         read('=');
                         tokens.add(new Token(Token.Type.IS_ENTRY_IN));
+                    } else if (peek() == '?') {
+                        read('?');
+                        tokens.add(new Token(Token.Type.IS_HIT_IN));
                     } else {
                         tokens.add(new Token(Token.Type.FROM));
                     }
@@ -88,16 +91,40 @@ public class TokenReader extends UeberReader {
 
     public NodeToken readNodeToken() throws IOException, EndOfStreamException, UnexpectedCharacterException {
         read('(');
-        NodeToken token;
         String name = readName();
-        token = new NodeToken(name);
+        long id = readId();
+        ArrayList<String> labels = new ArrayList<String>();
+        while (peek() == ':') {
+            read(':');
+            labels.add(readLabel());
+        }
         read(')');
-        return token;
+        return new NodeToken(name, id, labels.toArray(new String[labels.size()]));
+    }
+
+    public String readLabel() throws IOException, EndOfStreamException, UnexpectedCharacterException {
+        String label;
+        if (peek() == '`') {
+            read('`');
+            label = readUntil('`', false);
+            read('`');
+        } else {
+            StringBuilder str = new StringBuilder(80);
+            while (isNameChar(peek())) {
+                str.append(read());
+            }
+            label = str.toString();
+        }
+        if (label.isEmpty()) {
+            throw new UnexpectedCharacterException(peek());
+        }
+        return label;
     }
 
     public RelationshipToken readRelationshipToken() throws IOException, EndOfStreamException, UnexpectedCharacterException {
         read('[');
         String name = readName();
+        long id = readId();
         String type = "";
         if (peek() == ':') {
             read(':');
@@ -110,7 +137,7 @@ public class TokenReader extends UeberReader {
             }
         }
         read(']');
-        return new RelationshipToken(name, type);
+        return new RelationshipToken(name, id, type);
     }
 
     public Token readIndexToken() throws IOException, EndOfStreamException, UnexpectedCharacterException {
@@ -120,6 +147,30 @@ public class TokenReader extends UeberReader {
         return new IndexToken(name);
     }
 
+    /**
+     * Read an optional entity ID, written as '@' followed by digits.
+     *
+     * @return the ID read, or -1 if none
+     */
+    public long readId() throws IOException, EndOfStreamException, UnexpectedCharacterException {
+        if (peek() != '@') {
+            return -1;
+        }
+        read('@');
+        StringBuilder str = new StringBuilder(20);
+        while (isDigit(peek())) {
+            str.append(read());
+        }
+        if (str.length() == 0) {
+            throw new UnexpectedCharacterException(peek());
+        }
+        try {
+            return Long.parseLong(str.toString());
+        } catch (NumberFormatException e) {
+            throw new UnexpectedCharacterException(str.charAt(str.length() - 1));
+        }
+    }
+
     public String readName() throws IOException, EndOfStreamException, UnexpectedCharacterException {
         StringBuilder str = new StringBuilder(80);
         while (isNameChar(peek())) {
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over strings: a compact set which may report that it
+ * contains a string which was never added, but never reports that it
+ * lacks one which was. Filters can be written out and read back so that
+ * one built for a data set can be reused by later loads.
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+	private final long size;
+	private final int hashes;
+
+	/**
+	 * Create an empty filter sized for a number of strings and a target
+	 * false positive probability.
+	 *
+	 * @param expectedInsertions number of strings expected to be added
+	 * @param falsePositiveProbability acceptable false positive probability
+	 */
+	public BloomFilter(long expectedInsertions, double falsePositiveProbability) {
+		long n = Math.max(expectedInsertions, 1);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (ln2 * ln2));
+		this.bits = new long[(int) Math.max((m + 63) / 64, 1)];
+		this.size = this.bits.length * 64L;
+		this.hashes = Math.max(1, (int) Math.round((double) this.size / n * ln2));
+	}
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.size = bits.length * 64L;
+		this.hashes = hashes;
+	}
+
+	public synchronized void add(String value) {
+		long h1 = hash1(value);
+		long h2 = hash2(value);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public synchronized boolean mightContain(String value) {
+		long h1 = hash1(value);
+		long h2 = hash2(value);
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(hashes);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	public static BloomFilter readFrom(DataInputStream in) throws IOException {
+		int hashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashes);
+	}
+
+	private static long hash1(String value) {
+		long h = value.hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash2(String value) {
+		// 64 bit FNV-1a, forced odd so that successive probes differ
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h | 1;
+	}
+
+}
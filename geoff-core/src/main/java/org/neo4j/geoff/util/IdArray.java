@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of entity IDs held in a primitive array. IDs may be added in any
+ * order; the array is sorted and duplicates dropped the first time it is
+ * read, after which IDs can be addressed by position or found by binary
+ * search without boxing.
+ */
+public class IdArray {
+
+	private long[] ids;
+	private int size;
+	private boolean sorted = true;
+
+	public IdArray() {
+		this(8);
+	}
+
+	public IdArray(int capacity) {
+		this.ids = new long[Math.max(capacity, 1)];
+	}
+
+	public void add(long id) {
+		if (this.size == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.size * 2);
+		}
+		if (this.size > 0 && id <= this.ids[this.size - 1]) {
+			this.sorted = false;
+		}
+		this.ids[this.size++] = id;
+	}
+
+	public void addAll(IdArray other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.ids[i]);
+		}
+	}
+
+	/**
+	 * Remove an ID if present.
+	 *
+	 * @param id the ID to remove
+	 * @return true if the ID was present
+	 */
+	public boolean remove(long id) {
+		sort();
+		int index = Arrays.binarySearch(this.ids, 0, this.size, id);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(this.ids, index + 1, this.ids, index, this.size - index - 1);
+		this.size--;
+		return true;
+	}
+
+	public int size() {
+		sort();
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Return the ID at a zero-based position in ascending ID order.
+	 *
+	 * @param index position of the ID
+	 * @return the ID at that position
+	 */
+	public long get(int index) {
+		sort();
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		return this.ids[index];
+	}
+
+	public boolean contains(long id) {
+		sort();
+		return Arrays.binarySearch(this.ids, 0, this.size, id) >= 0;
+	}
+
+	public long[] toArray() {
+		sort();
+		return Arrays.copyOf(this.ids, this.size);
+	}
+
+	private void sort() {
+		if (!this.sorted) {
+			Arrays.sort(this.ids, 0, this.size);
+			int n = 1;
+			for (int i = 1; i < this.size; i++) {
+				if (this.ids[i] != this.ids[n - 1]) {
+					this.ids[n++] = this.ids[i];
+				}
+			}
+			this.size = n;
+			this.sorted = true;
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of reentrant locks shared between threads, selected by the
+ * hash of a key. Distinct keys usually fall on distinct stripes and so do
+ * not contend, whereas equal keys always share a stripe.
+ */
+public class LockStripes {
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+
+	/**
+	 * Create a set of lock stripes.
+	 *
+	 * @param size number of stripes, rounded up to a power of two
+	 */
+	public LockStripes(int size) {
+		int n = 1;
+		while (n < size) {
+			n <<= 1;
+		}
+		this.stripes = new ReentrantLock[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+		this.mask = n - 1;
+	}
+
+	/**
+	 * Return the lock guarding the supplied key.
+	 *
+	 * @param key the key to lock
+	 * @return the stripe for that key
+	 */
+	public ReentrantLock stripeFor(Object key) {
+		return this.stripes[indexFor(key)];
+	}
+
+	private int indexFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & this.mask;
+	}
+
+	/**
+	 * Acquire the lock guarding the supplied key.
+	 *
+	 * @param key the key to lock
+	 * @param timeoutMillis how long to wait for the lock
+	 * @return the lock acquired, or null if the wait timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public ReentrantLock tryLock(Object key, long timeoutMillis) throws InterruptedException {
+		ReentrantLock lock = stripeFor(key);
+		if (lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			return lock;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Acquire the locks guarding all of the supplied keys, one stripe at a
+	 * time in stripe order, each stripe once however many keys share it.
+	 * Threads locking overlapping sets of keys, or distinct keys which
+	 * happen to share stripes, then queue behind one another rather than
+	 * each holding a stripe the other waits for. If any wait times out,
+	 * the stripes acquired so far are released again.
+	 *
+	 * @param keys the keys to lock
+	 * @param timeoutMillis how long to wait for each stripe
+	 * @return the locks acquired, or null if a wait timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<ReentrantLock> tryLockAll(Collection<?> keys, long timeoutMillis) throws InterruptedException {
+		TreeMap<Integer, ReentrantLock> ordered = new TreeMap<Integer, ReentrantLock>();
+		for (Object key : keys) {
+			int index = indexFor(key);
+			ordered.put(index, this.stripes[index]);
+		}
+		List<ReentrantLock> acquired = new ArrayList<ReentrantLock>(ordered.size());
+		boolean complete = false;
+		try {
+			for (ReentrantLock lock : ordered.values()) {
+				if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					return null;
+				}
+				acquired.add(lock);
+			}
+			complete = true;
+			return acquired;
+		} finally {
+			if (!complete) {
+				for (ReentrantLock lock : acquired) {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.util;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from strings to non-negative IDs held outside the Java heap, in
+ * memory-mapped temporary files. Keys are appended to a data file and
+ * found through an open addressing hash table in a second file, so that
+ * the number of entries is bounded by disk rather than by heap. The
+ * files are unlinked as soon as they are created and vanish once the
+ * map is unreachable or closed.
+ */
+public class MappedIdMap {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// slot: key offset + 1 (0 = empty, -1 = removed), ID, key hash, key length
+	private static final int SLOT_SIZE = 32;
+	private static final long EMPTY = 0;
+	private static final long REMOVED = -1;
+
+	private final File directory;
+	private MappedFile table;
+	private final MappedFile keys;
+	private long capacity;
+	private long size = 0;
+	private long used = 0;
+	private long keysLength = 0;
+
+	/**
+	 * Create an empty map with files in the given directory.
+	 *
+	 * @param directory directory for temporary files, or null for the
+	 *                  system default
+	 */
+	public MappedIdMap(File directory) {
+		this.directory = directory;
+		this.capacity = 1 << 12;
+		this.table = new MappedFile(directory, "geoff-table");
+		this.keys = new MappedFile(directory, "geoff-keys");
+	}
+
+	public long size() {
+		return this.size;
+	}
+
+	public boolean containsKey(String key) {
+		return get(key) >= 0;
+	}
+
+	/**
+	 * Look up the ID held under a key.
+	 *
+	 * @param key the key
+	 * @return the ID, or -1 if absent
+	 */
+	public long get(String key) {
+		byte[] bytes = key.getBytes(UTF8);
+		long slot = find(bytes, hash(bytes));
+		return slot < 0 ? -1 : this.table.getLong(slot + 8);
+	}
+
+	/**
+	 * Hold an ID under a key, unless the key is already present.
+	 *
+	 * @param key the key
+	 * @param id the ID, which must not be negative
+	 * @return true if added
+	 */
+	public boolean put(String key, long id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Negative ID " + id);
+		}
+		byte[] bytes = key.getBytes(UTF8);
+		int hash = hash(bytes);
+		if (find(bytes, hash) >= 0) {
+			return false;
+		}
+		if ((this.used + 1) * 2 > this.capacity) {
+			resize();
+		}
+		long offset = appendKey(bytes);
+		long slot = position(hash, this.capacity);
+		while (this.table.getLong(slot) != EMPTY) {
+			slot = next(slot, this.capacity);
+		}
+		writeSlot(this.table, slot, offset + 1, id, hash, bytes.length);
+		this.size++;
+		this.used++;
+		return true;
+	}
+
+	/**
+	 * Remove a key.
+	 *
+	 * @param key the key
+	 * @return the ID held under the key, or -1 if absent
+	 */
+	public long remove(String key) {
+		byte[] bytes = key.getBytes(UTF8);
+		long slot = find(bytes, hash(bytes));
+		if (slot < 0) {
+			return -1;
+		}
+		long id = this.table.getLong(slot + 8);
+		this.table.putLong(slot, REMOVED);
+		this.size--;
+		return id;
+	}
+
+	/**
+	 * Iterate over the keys held, in no particular order.
+	 *
+	 * @return key iterator
+	 */
+	public Iterator<String> keys() {
+		return new Iterator<String>() {
+
+			private long slot = advance(-SLOT_SIZE);
+
+			private long advance(long from) {
+				long end = capacity * SLOT_SIZE;
+				for (long s = from + SLOT_SIZE; s < end; s += SLOT_SIZE) {
+					long offset = table.getLong(s);
+					if (offset != EMPTY && offset != REMOVED) {
+						return s;
+					}
+				}
+				return -1;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return slot >= 0;
+			}
+
+			@Override
+			public String next() {
+				if (slot < 0) {
+					throw new NoSuchElementException();
+				}
+				String key = new String(readKey(table.getLong(slot) - 1, table.getInt(slot + 20)), UTF8);
+				slot = advance(slot);
+				return key;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+	}
+
+	/**
+	 * Release the files held by this map. The map may not be used after
+	 * it has been closed.
+	 */
+	public void close() {
+		this.table.close();
+		this.keys.close();
+	}
+
+	private long find(byte[] bytes, int hash) {
+		long slot = position(hash, this.capacity);
+		while (true) {
+			long offset = this.table.getLong(slot);
+			if (offset == EMPTY) {
+				return -1;
+			}
+			if (offset != REMOVED && this.table.getInt(slot + 16) == hash && this.table.getInt(slot + 20) == bytes.length) {
+				byte[] existing = readKey(offset - 1, bytes.length);
+				if (Arrays.equals(existing, bytes)) {
+					return slot;
+				}
+			}
+			slot = next(slot, this.capacity);
+		}
+	}
+
+	private void resize() {
+		long newCapacity = this.size * 2 + 2 > this.capacity ? this.capacity * 2 : this.capacity;
+		MappedFile newTable = new MappedFile(this.directory, "geoff-table");
+		for (long slot = 0; slot < this.capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+			long offset = this.table.getLong(slot);
+			if (offset != EMPTY && offset != REMOVED) {
+				int hash = this.table.getInt(slot + 16);
+				long target = position(hash, newCapacity);
+				while (newTable.getLong(target) != EMPTY) {
+					target = next(target, newCapacity);
+				}
+				writeSlot(newTable, target, offset, this.table.getLong(slot + 8), hash, this.table.getInt(slot + 20));
+			}
+		}
+		this.table.close();
+		this.table = newTable;
+		this.capacity = newCapacity;
+		this.used = this.size;
+	}
+
+	private long appendKey(byte[] bytes) {
+		// keys never straddle a segment boundary
+		long segmentSpace = MappedFile.SEGMENT_SIZE - (this.keysLength & MappedFile.SEGMENT_MASK);
+		if (bytes.length > segmentSpace) {
+			this.keysLength += segmentSpace;
+		}
+		long offset = this.keysLength;
+		this.keys.put(offset, bytes);
+		this.keysLength += bytes.length;
+		return offset;
+	}
+
+	private byte[] readKey(long offset, int length) {
+		byte[] bytes = new byte[length];
+		this.keys.get(offset, bytes);
+		return bytes;
+	}
+
+	private static void writeSlot(MappedFile table, long slot, long offset, long id, int hash, int length) {
+		table.putLong(slot + 8, id);
+		table.putInt(slot + 16, hash);
+		table.putInt(slot + 20, length);
+		table.putLong(slot, offset);
+	}
+
+	private static int hash(byte[] bytes) {
+		int h = 0x811c9dc5;
+		for (byte b : bytes) {
+			h = (h ^ b) * 0x01000193;
+		}
+		return h;
+	}
+
+	private static long position(int hash, long capacity) {
+		return ((hash & 0x7fffffffL) % capacity) * SLOT_SIZE;
+	}
+
+	private static long next(long slot, long capacity) {
+		slot += SLOT_SIZE;
+		return slot == capacity * SLOT_SIZE ? 0 : slot;
+	}
+
+	/**
+	 * A temporary file mapped into memory in fixed size segments, each
+	 * mapped as first touched.
+	 */
+	private static class MappedFile {
+
+		static final int SEGMENT_BITS = 26;
+		static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+		static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+		private RandomAccessFile file;
+		private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+		MappedFile(File directory, String prefix) {
+			try {
+				File path = File.createTempFile(prefix, ".tmp", directory);
+				this.file = new RandomAccessFile(path, "rw");
+				if (!path.delete()) {
+					path.deleteOnExit();
+				}
+			} catch (IOException e) {
+				throw new IOError(e);
+			}
+		}
+
+		private MappedByteBuffer segment(long position) {
+			int index = (int) (position >>> SEGMENT_BITS);
+			try {
+				while (this.segments.size() <= index) {
+					long start = (long) this.segments.size() << SEGMENT_BITS;
+					this.segments.add(this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_SIZE));
+				}
+			} catch (IOException e) {
+				throw new IOError(e);
+			}
+			return this.segments.get(index);
+		}
+
+		long getLong(long position) {
+			return segment(position).getLong((int) (position & SEGMENT_MASK));
+		}
+
+		void putLong(long position, long value) {
+			segment(position).putLong((int) (position & SEGMENT_MASK), value);
+		}
+
+		int getInt(long position) {
+			return segment(position).getInt((int) (position & SEGMENT_MASK));
+		}
+
+		void putInt(long position, int value) {
+			segment(position).putInt((int) (position & SEGMENT_MASK), value);
+		}
+
+		void get(long position, byte[] bytes) {
+			MappedByteBuffer segment = segment(position);
+			int start = (int) (position & SEGMENT_MASK);
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = segment.get(start + i);
+			}
+		}
+
+		void put(long position, byte[] bytes) {
+			MappedByteBuffer segment = segment(position);
+			int start = (int) (position & SEGMENT_MASK);
+			for (int i = 0; i < bytes.length; i++) {
+				segment.put(start + i, bytes[i]);
+			}
+		}
+
+		void close() {
+			this.segments.clear();
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				// nothing further can be done with the file
+			}
+		}
+
+	}
+
+}
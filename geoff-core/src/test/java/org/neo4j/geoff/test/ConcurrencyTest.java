@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test;
+
+import org.junit.Test;
+import org.neo4j.geoff.Geoff;
+import org.neo4j.geoff.Neo4jGraphProxy;
+import org.neo4j.geoff.Statistics;
+import org.neo4j.geoff.Subgraph;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyTest extends TestBase {
+
+    /**
+     * Run the same task on several threads at once, failing if any throw.
+     */
+    private static void runConcurrently(int threadCount, final Runnable task) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+
+    @Test
+    public void canLockParamsInIdOrder() throws Exception {
+        Node alice = db.createAlice();
+        Node bob = db.createBob();
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        params.put("(B)", bob);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setLockOrdering(true);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph("(A)-[:KNOWS]->(B)"));
+        assertEquals(2, proxy.getStatistics().get(Statistics.LOCKS_ACQUIRED));
+    }
+
+    @Test
+    public void canMergeOverlappingNodesInOppositeOrders() throws Exception {
+        final Node alice = db.createAlice();
+        final Node bob = db.createBob();
+        runConcurrently(4, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+                    params.put("(A)", alice);
+                    params.put("(B)", bob);
+                    Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+                    proxy.setLockOrdering(true);
+                    proxy.setRetries(5, 1);
+                    proxy.inputParams(params);
+                    try {
+                        if (i % 2 == 0) {
+                            proxy.merge(new Subgraph("(A) {\"n\": " + i + "}", "(B) {\"n\": " + i + "}"));
+                        } else {
+                            proxy.merge(new Subgraph("(B) {\"n\": " + i + "}", "(A) {\"n\": " + i + "}"));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    assertEquals(0, proxy.getStatistics().get(Statistics.DEADLOCKS));
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            db.assertNodeCount(3);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void concurrentIndexMergesCreateSingleNode() throws Exception {
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Geoff.mergeIntoNeo4j(new Subgraph("(A)<=|People| {\"email\": \"alice@example.com\"}"), db, null);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(1, db.index().forNodes("People").get("email", "alice@example.com").size());
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void concurrentIndexMergesCreateSingleRelationship() throws Exception {
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Geoff.mergeIntoNeo4j(new Subgraph("[R:KNOWS]<=|Friendships| {\"id\": 1}"), db, null);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(1, db.index().forRelationships("Friendships").get("id", 1).size());
+            db.assertNodeCount(3);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void concurrentIndexMergesOnDistinctKeysCreateOneNodeEach() throws Exception {
+        final int[] counter = new int[1];
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                int n;
+                synchronized (counter) {
+                    n = counter[0]++;
+                }
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Geoff.mergeIntoNeo4j(new Subgraph("(A)<=|People| {\"id\": " + (n * 10 + i) + "}"), db, null);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            db.assertNodeCount(81);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void concurrentLabelMergesCreateSingleNode() throws Exception {
+        db.createSchemaIndex("Person", "email");
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        Geoff.mergeIntoNeo4j(new Subgraph("(A:Person) {\"email\": \"alice@example.com\"}"), db, null);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            db.assertLabelledNodeCount("Person", 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void labelMergesInOppositeOrdersDoNotStall() throws Exception {
+        db.createSchemaIndex("Person", "email");
+        final int[] counter = new int[1];
+        runConcurrently(4, new Runnable() {
+            @Override
+            public void run() {
+                int n;
+                synchronized (counter) {
+                    n = counter[0]++;
+                }
+                for (int i = 0; i < 20; i++) {
+                    String a = "(X:Person) {\"email\": \"a" + i + "\"}";
+                    String b = "(Y:Person) {\"email\": \"b" + i + "\"}";
+                    Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+                    proxy.setMergeLockTimeout(2000);
+                    proxy.setRetries(5, 1);
+                    try {
+                        proxy.merge(n % 2 == 0 ? new Subgraph(a, b) : new Subgraph(b, a));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    assertEquals(0, proxy.getStatistics().get(Statistics.MERGE_LOCK_TIMEOUTS));
+                }
+            }
+        });
+        Transaction tx = db.beginTx();
+        try {
+            db.assertLabelledNodeCount("Person", 40);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void compositeKeyMergesInOppositeOrdersDoNotStall() throws Exception {
+        Transaction tx = db.beginTx();
+        try {
+            db.index().forNodes("People");
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        final int[] counter = new int[1];
+        runConcurrently(4, new Runnable() {
+            @Override
+            public void run() {
+                int n;
+                synchronized (counter) {
+                    n = counter[0]++;
+                }
+                for (int i = 0; i < 20; i++) {
+                    String a = "(X)<=|People| {\"name\": \"a" + i + "\", \"born\": 1970}";
+                    String b = "(Y)<=|People| {\"name\": \"b" + i + "\", \"born\": 1970}";
+                    Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+                    proxy.setCompositeIndexKeys(true);
+                    proxy.setMergeLockTimeout(2000);
+                    proxy.setRetries(5, 1);
+                    try {
+                        proxy.merge(n % 2 == 0 ? new Subgraph(a, b) : new Subgraph(b, a));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    assertEquals(0, proxy.getStatistics().get(Statistics.MERGE_LOCK_TIMEOUTS));
+                }
+            }
+        });
+        tx = db.beginTx();
+        try {
+            db.assertNodeCount(41);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void retryKeepsNamesBoundByEarlierSubgraphs() throws Exception {
+        final boolean[] armed = {false};
+        GraphDatabaseService graphDB = (GraphDatabaseService) Proxy.newProxyInstance(
+            GraphDatabaseService.class.getClassLoader(),
+            new Class<?>[] {GraphDatabaseService.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (armed[0] && "createNode".equals(method.getName())) {
+                        armed[0] = false;
+                        throw new DeadlockDetectedException("Injected deadlock");
+                    }
+                    try {
+                        return method.invoke(db, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            }
+        );
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(graphDB);
+        proxy.setRetries(1, 1);
+        proxy.merge(new Subgraph("(A) {\"name\": \"Alice\"}"));
+        Node alice = (Node) proxy.outputParams().get("(A)");
+        armed[0] = true;
+        proxy.merge(new Subgraph("(A)-[:KNOWS]->(B) {\"since\": 1977}"));
+        assertEquals(1, proxy.getStatistics().get(Statistics.DEADLOCKS));
+        assertEquals(1, proxy.getStatistics().get(Statistics.RETRIES));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(alice, out.get("(A)"));
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(alice, ((Node) out.get("(B)")).getSingleRelationship(
+                DynamicRelationshipType.withName("KNOWS"), Direction.INCOMING
+            ).getStartNode());
+            db.assertCounts(3, 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void lostIndexRaceReplacesCachedEntry() throws Exception {
+        final int[] created = {0};
+        GraphDatabaseService graphDB = (GraphDatabaseService) Proxy.newProxyInstance(
+            GraphDatabaseService.class.getClassLoader(),
+            new Class<?>[] {GraphDatabaseService.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("createNode".equals(method.getName()) && created[0]++ == 0) {
+                        // another writer gets there first, after the lookup
+                        Thread writer = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Transaction tx = db.beginTx();
+                                try {
+                                    db.index().forNodes("People").add(db.createNode(), "email", "alice@example.com");
+                                    tx.success();
+                                } finally {
+                                    tx.close();
+                                }
+                            }
+                        });
+                        writer.start();
+                        writer.join();
+                    }
+                    try {
+                        return method.invoke(db, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            }
+        );
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(graphDB);
+        proxy.merge(new Subgraph(
+            "(A)<=|People| {\"email\": \"alice@example.com\"}",
+            "(B)<=|People| {\"email\": \"alice@example.com\"}"
+        ));
+        assertEquals(1, created[0]);
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(out.get("(A)"), out.get("(B)"));
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(1, db.index().forNodes("People").get("email", "alice@example.com").size());
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+}
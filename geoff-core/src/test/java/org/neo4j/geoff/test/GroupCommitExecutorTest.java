@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.geoff.GroupCommitExecutor;
+import org.neo4j.geoff.Subgraph;
+import org.neo4j.geoff.except.GroupCommitError;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+import static org.neo4j.geoff.test.TestDatabase.*;
+
+public class GroupCommitExecutorTest extends TestBase {
+
+    private GroupCommitExecutor executor;
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void canMergeSingleRequest() throws Exception {
+        executor = new GroupCommitExecutor(db, 5, 10);
+        Map<String, PropertyContainer> out = executor.merge(new Subgraph(ALICE), null);
+        Transaction tx = db.beginTx();
+        try {
+            assertNodesExist(out, "(A)");
+            assertAlice((Node) out.get("(A)"));
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeConcurrentRequestsWithSeparateNames() throws Exception {
+        executor = new GroupCommitExecutor(db, 50, 10);
+        final int count = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Map<String, PropertyContainer>> results = new ArrayList<Map<String, PropertyContainer>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Map<String, PropertyContainer> out = executor.merge(
+                            new Subgraph("(A) {\"number\": " + n + "}"), null
+                        );
+                        synchronized (results) {
+                            results.add(out);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(count, results.size());
+        Transaction tx = db.beginTx();
+        try {
+            boolean[] seen = new boolean[count];
+            for (Map<String, PropertyContainer> out : results) {
+                assertEquals(1, out.size());
+                seen[(Integer) out.get("(A)").getProperty("number")] = true;
+            }
+            for (boolean s : seen) {
+                assertTrue(s);
+            }
+            db.assertNodeCount(count + 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void failedRequestRollsBackWholeGroup() throws Exception {
+        executor = new GroupCommitExecutor(db, 200, 2);
+        final GroupCommitError[] errors = new GroupCommitError[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.merge(new Subgraph(ALICE), null);
+                } catch (GroupCommitError e) {
+                    errors[0] = e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        try {
+            executor.merge(new Subgraph("[R]"), null);
+            fail("Untyped relationship should not be created");
+        } catch (GroupCommitError e) {
+            assertTrue(e.isFailedRequest());
+            assertEquals(1, e.getFailedPositions().length);
+        }
+        thread.join();
+        assertNotNull(errors[0]);
+        assertFalse(errors[0].isFailedRequest());
+        assertEquals(1, errors[0].getFailedPositions().length);
+        Transaction tx = db.beginTx();
+        try {
+            db.assertNodeCount(1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void failureOutsideRequestsFailsGroupAndKeepsWorking() throws Exception {
+        final boolean[] broken = {true};
+        GraphDatabaseService graphDB = (GraphDatabaseService) Proxy.newProxyInstance(
+            GraphDatabaseService.class.getClassLoader(),
+            new Class<?>[] {GraphDatabaseService.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (broken[0] && "beginTx".equals(method.getName())) {
+                        broken[0] = false;
+                        throw new AssertionError("Injected failure");
+                    }
+                    try {
+                        return method.invoke(db, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            }
+        );
+        executor = new GroupCommitExecutor(graphDB, 5, 10);
+        try {
+            executor.merge(new Subgraph(ALICE), null);
+            fail("Group should fail with the injected error");
+        } catch (GroupCommitError e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+            assertTrue(e.isFailedRequest());
+        }
+        Map<String, PropertyContainer> out = executor.merge(new Subgraph(ALICE), null);
+        Transaction tx = db.beginTx();
+        try {
+            assertAlice((Node) out.get("(A)"));
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+}
@@ -22,16 +22,27 @@ package org.neo4j.geoff.test;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.geoff.Explanation;
 import org.neo4j.geoff.Geoff;
+import org.neo4j.geoff.Neo4jGraphProxy;
+import org.neo4j.geoff.Statistics;
 import org.neo4j.geoff.Subgraph;
 import org.neo4j.geoff.except.SubgraphError;
 import org.neo4j.geoff.except.SyntaxError;
+import org.neo4j.geoff.store.NameDictionary;
+import org.neo4j.geoff.util.BloomFilter;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.ValueContext;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static junit.framework.Assert.assertEquals;
@@ -1184,4 +1195,826 @@ public class Neo4jGraphMergeTest extends TestBase {
         }
     }
 
+    @Test
+    public void canCreateLabelledNode() throws Exception {
+        Map<String, PropertyContainer> out = Geoff.mergeIntoNeo4j(new Subgraph("(A:Person) {\"name\": \"Alice Allison\"}"), db, null);
+        Transaction tx = db.beginTx();
+        try {
+            assertAlice((Node) out.get("(A)"));
+            assertTrue(((Node) out.get("(A)")).hasLabel(DynamicLabel.label("Person")));
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeLabelledNodeThroughUniquenessConstraint() throws Exception {
+        db.createUniquenessConstraint("Person", "email");
+        String rule = "(A:Person) {\"email\": \"alice@example.com\", \"name\": \"Alice Allison\"}";
+        Map<String, PropertyContainer> out1 = Geoff.mergeIntoNeo4j(new Subgraph(rule), db, null);
+        Map<String, PropertyContainer> out2 = Geoff.mergeIntoNeo4j(new Subgraph(rule), db, null);
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(out1.get("(A)"), out2.get("(A)"));
+            assertAlice((Node) out2.get("(A)"));
+            db.assertLabelledNodeCount("Person", 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeLabelledNodeThroughSchemaIndex() throws Exception {
+        db.createSchemaIndex("Person", "name");
+        Geoff.mergeIntoNeo4j(new Subgraph("(A:Person) {\"name\": \"Alice Allison\", \"age\": 34}"), db, null);
+        Map<String, PropertyContainer> out = Geoff.mergeIntoNeo4j(new Subgraph(
+                "(A:Person) {\"name\": \"Alice Allison\", \"age\": 35}",
+                "(B:Person) {\"name\": \"Bob Robertson\"}",
+                "(A)-[:KNOWS]->(B)"
+        ), db, null);
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(35, out.get("(A)").getProperty("age"));
+            db.assertLabelledNodeCount("Person", 2);
+            db.assertCounts(3, 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMatchRelationshipFromLowerDegreeSide() throws Exception {
+        Node alice = db.createAlice();
+        Node bob = db.createBob();
+        RelationshipType knows = DynamicRelationshipType.withName("KNOWS");
+        Transaction tx = db.beginTx();
+        try {
+            for (int i = 0; i < 100; i++) {
+                alice.createRelationshipTo(db.createNode(), knows);
+            }
+            alice.createRelationshipTo(bob, knows);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        params.put("(B)", bob);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph("(A)-[:KNOWS]->(B)"));
+        assertEquals(1, proxy.getStatistics().get(Statistics.MATCH_END_SCANS));
+        assertEquals(0, proxy.getStatistics().get(Statistics.MATCH_START_SCANS));
+        assertTrue(proxy.getStatistics().get(Statistics.RELATIONSHIPS_SCANNED) <= 3);
+        tx = db.beginTx();
+        try {
+            db.assertCounts(103, 101);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMatchCreatedRelationshipThroughAdjacencyCache() throws Exception {
+        Node alice = db.createAlice();
+        Node bob = db.createBob();
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        params.put("(B)", bob);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph(
+                "(A)-[:KNOWS]->(B)",
+                "(A)-[:KNOWS]->(B)",
+                "(A)-[:KNOWS]->(B)"
+        ));
+        assertTrue(proxy.getStatistics().get(Statistics.ADJACENCY_CACHE_HITS) >= 2);
+        Transaction tx = db.beginTx();
+        try {
+            db.assertCounts(3, 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMatchRelationshipThroughEdgeIndex() throws Exception {
+        Node alice = db.createAlice();
+        Node bob = db.createBob();
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        params.put("(B)", bob);
+        for (int i = 0; i < 2; i++) {
+            Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+            proxy.setEdgeIndex("edges");
+            proxy.inputParams(params);
+            proxy.merge(new Subgraph("(A)-[:KNOWS]->(B)", "(A)-[:KNOWS]->(B)"));
+            assertEquals(2, proxy.getStatistics().get(Statistics.EDGE_INDEX_LOOKUPS));
+            assertEquals(0, proxy.getStatistics().get(Statistics.RELATIONSHIPS_SCANNED));
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setEdgeIndex("edges");
+        proxy.inputParams(params);
+        proxy.delete(new Subgraph("(A)-[:KNOWS]->(B)"));
+        Transaction tx = db.beginTx();
+        try {
+            db.assertCounts(3, 0);
+            assertFalse(db.index().forRelationships("edges").get(Neo4jGraphProxy.EDGE_INDEX_KEY, "KNOWS").hasNext());
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void unchangedPropertiesAreNotRewritten() throws Exception {
+        Node alice = db.createAlice();
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        String rule = "(A) {\"name\": \"Alice Allison\", \"scores\": [3, 1, 4]}";
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph(rule));
+        assertEquals(1, proxy.getStatistics().get(Statistics.PROPERTIES_WRITTEN));
+        proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph(rule));
+        assertEquals(0, proxy.getStatistics().get(Statistics.PROPERTIES_WRITTEN));
+        assertEquals(0, proxy.getStatistics().get(Statistics.PROPERTIES_REMOVED));
+        assertEquals(2, proxy.getStatistics().get(Statistics.PROPERTIES_UNCHANGED));
+        proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph("(A) {\"name\": \"Alice Allison\", \"scores\": [3, 1, 5]}"));
+        assertEquals(1, proxy.getStatistics().get(Statistics.PROPERTIES_WRITTEN));
+        Transaction tx = db.beginTx();
+        try {
+            assertAlice(alice);
+            assertEquals(5, ((int[]) alice.getProperty("scores"))[2]);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canPatchNodeAndRelationshipProperties() throws Exception {
+        Subgraph geoff = new Subgraph(
+                "(A) {\"name\": \"Alice Allison\", \"visits\": 1, \"nickname\": \"Al\"}",
+                "(B) {\"name\": \"Bob Robertson\"}",
+                "(A)-[R:KNOWS]->(B) {\"since\": 1977, \"visits\": 1}"
+        );
+        Map<String, PropertyContainer> params = Geoff.mergeIntoNeo4j(geoff, db, null);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph(
+                "(A) +{\"visits\": 2, \"nickname\": null}",
+                "[R] +{\"visits\": 2}"
+        ));
+        assertEquals(2, proxy.getStatistics().get(Statistics.PROPERTIES_WRITTEN));
+        assertEquals(1, proxy.getStatistics().get(Statistics.PROPERTIES_REMOVED));
+        Transaction tx = db.beginTx();
+        try {
+            Node alice = (Node) params.get("(A)");
+            assertAlice(alice);
+            assertEquals(2, alice.getProperty("visits"));
+            assertFalse(alice.hasProperty("nickname"));
+            Relationship knows = (Relationship) params.get("[R]");
+            assertEquals(1977, knows.getProperty("since"));
+            assertEquals(2, knows.getProperty("visits"));
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canCoalesceDeferredPropertyWrites() throws Exception {
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setDeferredPropertyWrites(100);
+        proxy.merge(new Subgraph(
+                "(A) {\"name\": \"Alice Allison\", \"nickname\": \"Al\"}",
+                "(A) +{\"visits\": 1, \"nickname\": null}",
+                "(A) +{\"visits\": 2}",
+                "(B) {\"name\": \"Bob Robertson\"}",
+                "(A)-[:KNOWS]->(B)"
+        ));
+        assertEquals(4, proxy.getStatistics().get(Statistics.PROPERTY_WRITES_DEFERRED));
+        assertEquals(2, proxy.getStatistics().get(Statistics.ENTITIES_FLUSHED));
+        assertEquals(3, proxy.getStatistics().get(Statistics.PROPERTIES_WRITTEN));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        Transaction tx = db.beginTx();
+        try {
+            Node alice = (Node) out.get("(A)");
+            assertAlice(alice);
+            assertEquals(2, alice.getProperty("visits"));
+            assertFalse(alice.hasProperty("nickname"));
+            assertBob((Node) out.get("(B)"));
+            db.assertCounts(3, 1);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canReuseIndexEntriesCreatedInSameTransaction() throws Exception {
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.merge(new Subgraph(
+                "(A)<=|People| {\"email\": \"alice@example.com\"}",
+                "(B)<=|People| {\"email\": \"alice@example.com\"}",
+                "(C)<=|People| {\"email\": \"alice@example.com\"}"
+        ));
+        assertEquals(1, proxy.getStatistics().get(Statistics.INDEX_LOOKUPS));
+        assertEquals(2, proxy.getStatistics().get(Statistics.INDEX_CACHE_HITS));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(out.get("(A)"), out.get("(B)"));
+        assertEquals(out.get("(A)"), out.get("(C)"));
+        Transaction tx = db.beginTx();
+        try {
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canSkipIndexLookupsRuledOutByBloomFilter() throws Exception {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setNodeIndexBloomFilter("People", filter);
+        proxy.merge(new Subgraph(
+                "(A)<=|People| {\"email\": \"alice@example.com\"}",
+                "(B)<=|People| {\"email\": \"bob@example.com\"}"
+        ));
+        assertEquals(2, proxy.getStatistics().get(Statistics.BLOOM_FILTER_LOOKUPS_SAVED));
+        assertEquals(0, proxy.getStatistics().get(Statistics.INDEX_LOOKUPS));
+        assertTrue(filter.mightContain(Neo4jGraphProxy.bloomFilterKey("email", "alice@example.com")));
+        proxy = new Neo4jGraphProxy(db);
+        proxy.setNodeIndexBloomFilter("People", filter);
+        proxy.merge(new Subgraph("(A)<=|People| {\"email\": \"alice@example.com\"}"));
+        assertEquals(0, proxy.getStatistics().get(Statistics.BLOOM_FILTER_LOOKUPS_SAVED));
+        assertEquals(1, proxy.getStatistics().get(Statistics.INDEX_LOOKUPS));
+        Transaction tx = db.beginTx();
+        try {
+            db.assertNodeCount(3);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canResolveRunOfIndexMergesInBatches() throws Exception {
+        Geoff.mergeIntoNeo4j(new Subgraph(
+                "(A)<=|People| {\"id\": 3}",
+                "(B)<=|People| {\"id\": 11}"
+        ), db, null);
+        Subgraph subgraph = new Subgraph();
+        for (int i = 0; i < 64; i++) {
+            subgraph.add("(P" + i + ")<=|People| {\"id\": " + i + "}");
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setIndexLookAhead(100);
+        proxy.merge(subgraph);
+        Statistics statistics = proxy.getStatistics();
+        assertEquals(64, statistics.get(Statistics.INDEX_CACHE_HITS));
+        assertTrue(statistics.get(Statistics.INDEX_BATCH_QUERIES) + statistics.get(Statistics.INDEX_LOOKUPS) < 32);
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            assertEquals(people.get("id", 3).getSingle(), out.get("(P3)"));
+            assertEquals(people.get("id", 11).getSingle(), out.get("(P11)"));
+            db.assertNodeCount(65);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canLimitHitsBoundByIndexMerge() throws Exception {
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> teams = db.index().forNodes("Teams");
+            for (int i = 0; i < 3; i++) {
+                teams.add(db.createNode(), "team", "red");
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setIndexHitLimit(1);
+        proxy.merge(new Subgraph(
+                "(X)<=|Teams| {\"team\": \"red\"}",
+                "(X) {\"seen\": true}"
+        ));
+        assertEquals(1, proxy.getStatistics().get(Statistics.INDEX_HITS_TRUNCATED));
+        tx = db.beginTx();
+        try {
+            int seen = 0;
+            for (Node node : db.index().forNodes("Teams").get("team", "red")) {
+                if (node.hasProperty("seen")) {
+                    seen++;
+                }
+            }
+            assertEquals(1, seen);
+            db.assertNodeCount(4);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeIndexEntriesByCompositeKey() throws Exception {
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setCompositeIndexKeys(true);
+        proxy.merge(new Subgraph(
+                "(A)<=|People| {\"name\": \"Alice\", \"born\": 1970}",
+                "(B)<=|People| {\"born\": 1970, \"name\": \"Alice\"}",
+                "(C)<=|People| {\"name\": \"Alice\", \"born\": 1980}"
+        ));
+        assertEquals(3, proxy.getStatistics().get(Statistics.INDEX_COMPOSITE_QUERIES));
+        assertEquals(0, proxy.getStatistics().get(Statistics.INDEX_LOOKUPS));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(out.get("(A)"), out.get("(B)"));
+        assertFalse(out.get("(A)").equals(out.get("(C)")));
+        proxy = new Neo4jGraphProxy(db);
+        proxy.setCompositeIndexKeys(true);
+        proxy.merge(new Subgraph("(D)<=|People| {\"name\": \"Alice\", \"born\": 1980}"));
+        assertEquals(out.get("(C)"), proxy.outputParams().get("(D)"));
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            assertEquals(2, people.get("name", "Alice").size());
+            assertEquals(out.get("(A)"), people.get("born", 1970).getSingle());
+            db.assertNodeCount(3);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeIndexEntriesMissingFromBloomFilter() throws Exception {
+        Node alice;
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            alice = db.createNode();
+            people.add(alice, "email", "alice@example.com");
+            people.add(alice, "name", "Alice");
+            people.add(alice, "born", 1970);
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setNodeIndexBloomFilter("People", filter);
+        proxy.merge(new Subgraph("(A)<=|People| {\"email\": \"alice@example.com\"}"));
+        assertEquals(alice, proxy.outputParams().get("(A)"));
+        proxy = new Neo4jGraphProxy(db);
+        proxy.setNodeIndexBloomFilter("People", new BloomFilter(100, 0.01));
+        proxy.setCompositeIndexKeys(true);
+        proxy.merge(new Subgraph("(B)<=|People| {\"name\": \"Alice\", \"born\": 1970}"));
+        assertEquals(1, proxy.getStatistics().get(Statistics.BLOOM_FILTER_LOOKUPS_SAVED));
+        assertEquals(alice, proxy.outputParams().get("(B)"));
+        tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            assertEquals(1, people.get("name", "Alice").size());
+            assertEquals(1, people.get("born", 1970).size());
+            db.assertNodeCount(2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMergeCompositeKeyWhoseFirstPairIsHeldElsewhere() throws Exception {
+        Node bob;
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            bob = db.createNode();
+            people.add(bob, "born", 1970);
+            people.add(bob, "name", "Bob");
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setCompositeIndexKeys(true);
+        proxy.merge(new Subgraph(
+                "(A)<=|People| {\"name\": \"Alice\", \"born\": 1970}",
+                "(B)<=|People| {\"name\": \"Bob\", \"born\": 1970}"
+        ));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(bob, out.get("(B)"));
+        assertFalse(bob.equals(out.get("(A)")));
+        tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            assertEquals(2, people.get("born", 1970).size());
+            assertEquals(out.get("(A)"), people.get("name", "Alice").getSingle());
+            db.assertNodeCount(3);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canBindNodesFromIndexQuery() throws Exception {
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            for (String name : new String[] {"Alice", "Alan", "Bob", "Alfred"}) {
+                Node node = db.createNode();
+                node.setProperty("name", name);
+                people.add(node, "name", name);
+                people.add(node, "age", ValueContext.numeric(name.length() * 10));
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.merge(new Subgraph(
+                "(A)<?|People| {\"query\": \"name:Al*\"}",
+                "(A) +{\"tagged\": true}",
+                "(B)<?|People| {\"key\": \"age\", \"from\": 40, \"to\": 50, \"sort\": \"name\", \"limit\": 1}",
+                "(C)<?|Nobody| {\"query\": \"name:*\"}",
+                "(D)<?|People| {\"query\": \"name:Al*\"}",
+                "(D)<?|People| {\"key\": \"age\", \"from\": 40, \"to\": 50}",
+                "(D) +{\"narrowed\": true}"
+        ));
+        assertEquals(4, proxy.getStatistics().get(Statistics.INDEX_QUERIES));
+        tx = db.beginTx();
+        try {
+            int tagged = 0;
+            int narrowed = 0;
+            for (Node node : db.index().forNodes("People").query("name:*")) {
+                if (node.hasProperty("tagged")) {
+                    assertTrue(((String) node.getProperty("name")).startsWith("Al"));
+                    tagged++;
+                }
+                if (node.hasProperty("narrowed")) {
+                    narrowed++;
+                }
+            }
+            assertEquals(3, tagged);
+            assertEquals(2, narrowed);
+            assertEquals("Alan", ((Node) proxy.outputParams().get("(B)")).getProperty("name"));
+            assertFalse(proxy.outputParams().containsKey("(C)"));
+            db.assertNodeCount(5);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canAddressEntitiesById() throws Exception {
+        long alice, bob, knows;
+        Transaction tx = db.beginTx();
+        try {
+            Node a = db.createNode();
+            Node b = db.createNode();
+            alice = a.getId();
+            bob = b.getId();
+            knows = a.createRelationshipTo(b, DynamicRelationshipType.withName("KNOWS")).getId();
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.merge(new Subgraph(
+                "(A@" + alice + ") {\"name\": \"Alice\"}",
+                "(@" + bob + ") {\"name\": \"Bob\"}",
+                "[R@" + knows + ":KNOWS] {\"since\": 1977}",
+                "(@" + bob + ")-[:KNOWS]->(A)"
+        ));
+        assertEquals(3, proxy.getStatistics().get(Statistics.ID_REFERENCES_RESOLVED));
+        tx = db.beginTx();
+        try {
+            assertEquals("Alice", db.getNodeById(alice).getProperty("name"));
+            assertEquals("Bob", db.getNodeById(bob).getProperty("name"));
+            assertEquals(1977, db.getRelationshipById(knows).getProperty("since"));
+            assertEquals(db.getNodeById(alice), proxy.outputParams().get("(A)"));
+            db.assertCounts(3, 2);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test(expected = SubgraphError.class)
+    public void cannotAddressMissingNodeById() throws Exception {
+        Geoff.mergeIntoNeo4j(new Subgraph("(A@999999) {\"name\": \"Alice\"}"), db, null);
+    }
+
+    @Test
+    public void canMergeWithEntityNamesSpilledFromHeap() throws Exception {
+        Subgraph subgraph = new Subgraph();
+        for (int i = 0; i < 50; i++) {
+            subgraph.add("(N" + i + ") {\"number\": " + i + "}");
+        }
+        for (int i = 1; i < 50; i++) {
+            subgraph.add("(N" + (i - 1) + ")-[:NEXT]->(N" + i + ")");
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setEntityStoreHeapBudget(5, null);
+        proxy.merge(subgraph);
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(50, out.size());
+        Transaction tx = db.beginTx();
+        try {
+            assertEquals(49, out.get("(N49)").getProperty("number"));
+            Node node = (Node) out.get("(N0)");
+            for (int i = 1; i < 50; i++) {
+                node = node.getSingleRelationship(DynamicRelationshipType.withName("NEXT"), Direction.OUTGOING).getEndNode();
+            }
+            assertEquals(out.get("(N49)"), node);
+            db.assertCounts(51, 49);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canReferToNamesFromEarlierLoadsThroughDictionary() throws Exception {
+        File file = File.createTempFile("geoff-dictionary", ".tmp");
+        assertTrue(file.delete());
+        try {
+            NameDictionary dictionary = NameDictionary.open(file);
+            Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+            proxy.setNameDictionary(dictionary);
+            proxy.merge(new Subgraph(
+                    "(A) {\"name\": \"Alice\"}",
+                    "(B) {\"name\": \"Bob\"}",
+                    "(A)-[R:KNOWS]->(B)"
+            ));
+            dictionary.close();
+            dictionary = NameDictionary.open(file);
+            proxy = new Neo4jGraphProxy(db);
+            proxy.setNameDictionary(dictionary);
+            proxy.merge(new Subgraph(
+                    "(A)-[:LIKES]->(C) {\"since\": 1977}",
+                    "[R] {\"since\": 1982}"
+            ));
+            assertEquals(2, proxy.getStatistics().get(Statistics.DICTIONARY_NAMES_RESOLVED));
+            proxy = new Neo4jGraphProxy(db);
+            proxy.setNameDictionary(dictionary);
+            proxy.delete(new Subgraph("(C)", "(A)-[:LIKES]->(C)"));
+            assertEquals(-1, dictionary.nodeId("C"));
+            long knows = dictionary.relationshipId("R");
+            dictionary.close();
+            Transaction tx = db.beginTx();
+            try {
+                assertEquals(1982, db.getRelationshipById(knows).getProperty("since"));
+                db.assertCounts(3, 1);
+            } finally {
+                tx.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void canOutputSelectedNamesOnly() throws Exception {
+        Transaction tx = db.beginTx();
+        try {
+            Index<Node> people = db.index().forNodes("People");
+            for (String name : new String[] {"Alice", "Alan", "Alfred"}) {
+                Node node = db.createNode();
+                node.setProperty("name", name);
+                people.add(node, "name", name);
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.merge(new Subgraph(
+                "(A)<?|People| {\"query\": \"name:Al*\"}",
+                "(B) {\"name\": \"Bob\"}",
+                "(B)-[R:KNOWS]->(C)"
+        ));
+        Map<String, PropertyContainer> all = proxy.outputParams();
+        assertEquals(6, all.size());
+        assertTrue(proxy.outputParams(Collections.<String>emptyList()).isEmpty());
+        Map<String, PropertyContainer> out = proxy.outputParams(Arrays.asList("(B)", "R", "(A.2)", "(Z)"));
+        assertEquals(3, out.size());
+        assertEquals(all.get("(B)"), out.get("(B)"));
+        assertEquals(all.get("[R]"), out.get("[R]"));
+        assertEquals(all.get("(A.2)"), out.get("(A.2)"));
+        assertEquals(3, proxy.outputParams(Arrays.asList("A")).size());
+        Map<String, PropertyContainer> view = proxy.outputView();
+        assertEquals(all.get("(C)"), view.get("(C)"));
+        assertTrue(view.containsKey("[R]"));
+        assertFalse(view.containsKey("(A)"));
+        assertFalse(view.containsKey("(Z)"));
+        assertFalse(view.containsKey("B"));
+        assertEquals(6, view.size());
+        assertEquals(all, view);
+        assertTrue(Geoff.mergeIntoNeo4j(
+                new Subgraph("(D) {\"name\": \"Dave\"}"), db, null, Collections.<String>emptyList()
+        ).isEmpty());
+    }
+
+    @Test
+    public void canCascadeDeleteNodesInBatches() throws Exception {
+        long hub;
+        Transaction tx = db.beginTx();
+        try {
+            Node node = db.createNode();
+            hub = node.getId();
+            db.index().forNodes("People").add(node, "name", "Hub");
+            RelationshipType links = DynamicRelationshipType.withName("LINKS");
+            for (int i = 0; i < 25; i++) {
+                Relationship relationship = node.createRelationshipTo(db.createNode(), links);
+                db.index().forRelationships("Links").add(relationship, "number", i);
+            }
+            node.createRelationshipTo(node, links);
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setCascadeDelete(10, true);
+        proxy.delete(new Subgraph("(H@" + hub + ")"));
+        assertEquals(26, proxy.getStatistics().get(Statistics.CASCADE_RELATIONSHIPS_DELETED));
+        assertEquals(2, proxy.getStatistics().get(Statistics.CASCADE_BATCHES_COMMITTED));
+        tx = db.beginTx();
+        try {
+            db.assertCounts(26, 0);
+            assertEquals(0, db.index().forNodes("People").get("name", "Hub").size());
+            assertEquals(0, db.index().forRelationships("Links").query("number:*").size());
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canExplainSubgraphWithoutApplyingIt() throws Exception {
+        Geoff.mergeIntoNeo4j(new Subgraph(
+                "(A) {\"name\": \"Alice\"}",
+                "(B) {\"name\": \"Bob\"}",
+                "(A)-[:KNOWS]->(B)",
+                "(A)<=|People| {\"name\": \"Alice\"}",
+                "(B)<=|People| {\"name\": \"Bob\"}"
+        ), db, null);
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        filter.add(Neo4jGraphProxy.bloomFilterKey("name", "Alice"));
+        filter.add(Neo4jGraphProxy.bloomFilterKey("name", "Bob"));
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setNodeIndexBloomFilter("People", filter);
+        proxy.setExplain(true);
+        proxy.merge(new Subgraph(
+                "(A)<=|People| {\"name\": \"Alice\"}",
+                "(B)<=|People| {\"name\": \"Bob\"}",
+                "(A)-[R:KNOWS]->(B)",
+                "(D)<=|People| {\"name\": \"Dave\"}",
+                "(D)-[:KNOWS]->(A)"
+        ));
+        List<Explanation> explanations = proxy.getExplanations();
+        assertEquals(5, explanations.size());
+        Explanation alice = explanations.get(0);
+        assertEquals(1, alice.getRuleNumber());
+        assertFalse(alice.isCreate());
+        assertEquals(1, alice.getEntitiesBound());
+        assertEquals(1, alice.getIndexLookups());
+        Explanation knows = explanations.get(2);
+        assertFalse(knows.isCreate());
+        assertEquals(3, knows.getEntitiesBound());
+        assertTrue(knows.getRelationshipsScanned() >= 1);
+        Explanation dave = explanations.get(3);
+        assertTrue(dave.isCreate());
+        assertEquals(1, dave.getEntitiesCreated());
+        assertTrue(explanations.get(4).isCreate());
+        assertFalse(filter.mightContain(Neo4jGraphProxy.bloomFilterKey("name", "Dave")));
+        assertTrue(proxy.outputParams().isEmpty());
+        Transaction tx = db.beginTx();
+        try {
+            db.assertCounts(3, 1);
+            assertEquals(0, db.index().forNodes("People").get("name", "Dave").size());
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotExplainWhileCommittingCascadeBatches() throws Exception {
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setCascadeDelete(10, true);
+        proxy.setExplain(true);
+    }
+
+    @Test
+    public void canExplainWithoutCommittingBatchesOrCreatingIndexes() throws Exception {
+        long hub;
+        Transaction tx = db.beginTx();
+        try {
+            Node node = db.createNode();
+            hub = node.getId();
+            for (int i = 0; i < 15; i++) {
+                node.createRelationshipTo(db.createNode(), DynamicRelationshipType.withName("LINKS"));
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setCascadeDelete(10, false);
+        proxy.setExplain(true);
+        proxy.delete(new Subgraph("(H@" + hub + ")"));
+        assertEquals(15, proxy.getStatistics().get(Statistics.CASCADE_RELATIONSHIPS_COUNTED));
+        assertEquals(0, proxy.getStatistics().get(Statistics.CASCADE_RELATIONSHIPS_DELETED));
+        assertEquals(0, proxy.getStatistics().get(Statistics.CASCADE_BATCHES_COMMITTED));
+        proxy.merge(new Subgraph(
+                "(A)<=|Cities| {\"name\": \"Paris\"}",
+                "(B)<=|Cities| {\"name\": \"Paris\"}",
+                "[R:IN]<=|Visits| {\"year\": 2012}",
+                "(C)<?|Cities| {\"query\": \"name:Paris\"}"
+        ));
+        List<Explanation> explanations = proxy.getExplanations();
+        assertEquals(5, explanations.size());
+        assertEquals(15, explanations.get(0).getCascadeRelationships());
+        assertTrue(explanations.get(0).isExplained());
+        assertTrue(explanations.get(1).isCreate());
+        assertFalse(explanations.get(2).isCreate());
+        assertEquals(1, explanations.get(2).getEntitiesBound());
+        assertTrue(explanations.get(3).isCreate());
+        assertFalse(explanations.get(4).isExplained());
+        assertTrue(explanations.get(4).toString().endsWith("query of new index unexplained)"));
+        tx = db.beginTx();
+        try {
+            db.assertCounts(17, 15);
+            assertFalse(db.index().existsForNodes("Cities"));
+            assertFalse(db.index().existsForRelationships("Visits"));
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canStopMatchingAtFirstRelationshipWhenOnlyExistenceMatters() throws Exception {
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        Transaction tx = db.beginTx();
+        try {
+            Node a = db.createNode();
+            Node b = db.createNode();
+            for (int i = 0; i < 20; i++) {
+                a.createRelationshipTo(b, DynamicRelationshipType.withName("KNOWS"));
+            }
+            params.put("(A)", a);
+            params.put("(B)", b);
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph("(A)-[:KNOWS]->(B)"));
+        assertEquals(1, proxy.getStatistics().get(Statistics.RELATIONSHIPS_SCANNED));
+        proxy.merge(new Subgraph("(A)-[R:KNOWS]->(B)"));
+        Map<String, PropertyContainer> out = proxy.outputParams();
+        assertEquals(22, out.size());
+        assertNotNull(out.get("[R.20]"));
+        tx = db.beginTx();
+        try {
+            db.assertCounts(3, 20);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Test
+    public void canMatchExistingRelationshipThroughBuiltEdgeIndex() throws Exception {
+        Node alice = db.createAlice();
+        Node bob = db.createBob();
+        Transaction tx = db.beginTx();
+        try {
+            alice.createRelationshipTo(bob, DynamicRelationshipType.withName("KNOWS"));
+            alice.createRelationshipTo(bob, DynamicRelationshipType.withName("LIKES"));
+            bob.createRelationshipTo(alice, DynamicRelationshipType.withName("KNOWS"));
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        HashMap<String, PropertyContainer> params = new HashMap<String, PropertyContainer>();
+        params.put("(A)", alice);
+        params.put("(B)", bob);
+        Neo4jGraphProxy proxy = new Neo4jGraphProxy(db);
+        proxy.setEdgeIndex("edges");
+        assertEquals(3, proxy.buildEdgeIndex(2));
+        assertEquals(3, proxy.buildEdgeIndex(2));
+        proxy.inputParams(params);
+        proxy.merge(new Subgraph("(A)-[:KNOWS]->(B)", "(B)-[:KNOWS]->(A)", "(A)-[:LIKES]->(B)"));
+        assertEquals(3, proxy.getStatistics().get(Statistics.EDGE_INDEX_LOOKUPS));
+        assertEquals(0, proxy.getStatistics().get(Statistics.RELATIONSHIPS_SCANNED));
+        tx = db.beginTx();
+        try {
+            db.assertCounts(3, 3);
+            assertEquals(2, db.index().forRelationships("edges").get(Neo4jGraphProxy.EDGE_INDEX_KEY, "KNOWS").size());
+        } finally {
+            tx.close();
+        }
+    }
+
 }
@@ -22,6 +22,7 @@ package org.neo4j.geoff.test;
 import org.junit.Test;
 import org.neo4j.geoff.Rule;
 import org.neo4j.geoff.Subgraph;
+import org.neo4j.geoff.except.SyntaxError;
 import org.neo4j.geoff.store.IndexToken;
 import org.neo4j.geoff.store.NodeToken;
 import org.neo4j.geoff.store.RelationshipToken;
@@ -49,6 +50,22 @@ public class RuleTest {
         assertEquals("Alice", rule.getData().get("name"));
     }
 
+    @Test
+    public void canBuildNodeRuleWithId() throws Exception {
+        List<Rule> rules = Rule.from("(A@123:Person) {\"name\": \"Alice\"} (@7)");
+        assertEquals(2, rules.size());
+        NodeToken nodeToken = (NodeToken) rules.get(0).getDescriptor().getToken(0);
+        assertEquals("A", nodeToken.getName());
+        assertTrue(nodeToken.hasId());
+        assertEquals(123, nodeToken.getId());
+        assertEquals("Person", nodeToken.getLabels().get(0));
+        assertEquals("(A@123:Person)", nodeToken.toString());
+        nodeToken = (NodeToken) rules.get(1).getDescriptor().getToken(0);
+        assertEquals("@7", nodeToken.getName());
+        assertEquals(7, nodeToken.getId());
+        assertEquals("(@7)", nodeToken.toString());
+    }
+
     @Test
     public void canBuildRelationshipRule() throws Exception {
         String source = "[:KNOWS] {\"since\": 1977}";
@@ -135,6 +152,19 @@ public class RuleTest {
         assertEquals("Alice", rule.getData().get("name"));
     }
 
+    @Test
+    public void canBuildNodeIndexQueryRule() throws Exception {
+        String source = "(A)<?|People| {\"query\": \"name:Al*\", \"limit\": 10}";
+        List<Rule> rules = Rule.from(source);
+        assertEquals(1, rules.size());
+        Rule rule = rules.get(0);
+        assertEquals("N?I", rule.getDescriptor().getPattern());
+        assertTrue(rule.getDescriptor().getToken(0) instanceof NodeToken);
+        assertEquals(Token.Type.IS_HIT_IN, rule.getDescriptor().getToken(1).getTokenType());
+        assertTrue(rule.getDescriptor().getToken(2) instanceof IndexToken);
+        assertEquals("name:Al*", rule.getData().get("query"));
+    }
+
     @Test
     public void canBuildRelationshipIndexEntryRule() throws Exception {
         String source = "[R]<=|People| {\"name\": \"Alice\"}";
@@ -211,4 +241,46 @@ public class RuleTest {
         assertNull(ruleCD.getData());
     }
 
+    @Test
+    public void canBuildLabelledNodeRule() throws Exception {
+        String source = "(A:Person:`Recording Artist`) {\"name\": \"Alice\"}";
+        List<Rule> rules = Rule.from(source);
+        Rule rule = rules.get(0);
+        assertEquals("N", rule.getDescriptor().getPattern());
+        NodeToken token = (NodeToken) rule.getDescriptor().getToken(0);
+        assertEquals("A", token.getName());
+        assertTrue(token.hasLabels());
+        assertEquals(2, token.getLabels().size());
+        assertEquals("Person", token.getLabels().get(0));
+        assertEquals("Recording Artist", token.getLabels().get(1));
+    }
+
+    @Test
+    public void canBuildPathRuleWithLabelledNodes() throws Exception {
+        List<Rule> rules = Rule.from("(A:Person)-[:KNOWS]->(:Person)");
+        Rule rule = rules.get(0);
+        assertEquals("N-R->N", rule.getDescriptor().getPattern());
+        NodeToken endToken = (NodeToken) rule.getDescriptor().getToken(5);
+        assertFalse(endToken.hasName());
+        assertEquals("Person", endToken.getLabels().get(0));
+        assertEquals("(:Person)", endToken.toString());
+    }
+
+    @Test
+    public void canBuildPatchRule() throws Exception {
+        List<Rule> rules = Rule.from("(A) +{\"visits\": 12, \"nickname\": null} (B) {\"name\": \"Bob\"}");
+        Rule ruleA = rules.get(0);
+        assertTrue(ruleA.isPatch());
+        assertEquals(12, ruleA.getData().get("visits"));
+        assertTrue(ruleA.getData().containsKey("nickname"));
+        assertNull(ruleA.getData().get("nickname"));
+        assertFalse(rules.get(1).isPatch());
+    }
+
+    @Test(expected = SyntaxError.class)
+    public void cannotBuildPatchRuleWithoutData() throws Exception {
+        Rule.from("(A) + (B)");
+    }
+
 }
+
@@ -22,7 +22,9 @@ package org.neo4j.geoff.test;
 import org.neo4j.graphdb.*;
 import org.neo4j.test.ImpermanentGraphDatabase;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -32,8 +34,39 @@ class TestDatabase extends ImpermanentGraphDatabase {
 	static final String BOB   = "Bob Robertson";
 	static final String CAROL = "Carol Carlson";
 
+	/**
+	 * Stores given no mapped memory, which by default includes the schema
+	 * and label stores, can fail concurrent reads of the same record with
+	 * a NullPointerException from PersistenceWindowPool in Neo4j 2.0
+	 * milestones, so every store is given some.
+	 */
+	private static final String[] STORES = {
+		"neostore",
+		"neostore.nodestore.db",
+		"neostore.nodestore.db.labels",
+		"neostore.propertystore.db",
+		"neostore.propertystore.db.strings",
+		"neostore.propertystore.db.arrays",
+		"neostore.propertystore.db.index",
+		"neostore.propertystore.db.index.keys",
+		"neostore.relationshipstore.db",
+		"neostore.relationshiptypestore.db",
+		"neostore.relationshiptypestore.db.names",
+		"neostore.labeltokenstore.db",
+		"neostore.labeltokenstore.db.names",
+		"neostore.schemastore.db",
+	};
+
 	TestDatabase() {
-		super();
+		super(mappedMemory());
+	}
+
+	private static Map<String, String> mappedMemory() {
+		Map<String, String> config = new HashMap<String, String>();
+		for (String store : STORES) {
+			config.put(store + ".mapped_memory", "1M");
+		}
+		return config;
 	}
 
 	void assertNodeCount(long count) {
@@ -103,6 +136,39 @@ class TestDatabase extends ImpermanentGraphDatabase {
 		return relationship;
 	}
 
+	void createUniquenessConstraint(String label, String key) {
+		Transaction tx = this.beginTx();
+		this.schema().constraintFor(DynamicLabel.label(label)).on(key).unique().create();
+		tx.success();
+		tx.finish();
+		awaitSchema();
+	}
+
+	void createSchemaIndex(String label, String key) {
+		Transaction tx = this.beginTx();
+		this.schema().indexFor(DynamicLabel.label(label)).on(key).create();
+		tx.success();
+		tx.finish();
+		awaitSchema();
+	}
+
+	private void awaitSchema() {
+		Transaction tx = this.beginTx();
+		this.schema().awaitIndexesOnline(10, TimeUnit.SECONDS);
+		tx.success();
+		tx.finish();
+	}
+
+	void assertLabelledNodeCount(String label, long count) {
+		long n = 0;
+		for (Node node : this.getAllNodes()) {
+			if (node.hasLabel(DynamicLabel.label(label))) {
+				n++;
+			}
+		}
+		assertEquals(count, n);
+	}
+
 	static void assertAlice(Node node) {
 		assertNotNull(node);
 		assertTrue(node.hasProperty("name"));
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test.store;
+
+import org.junit.Test;
+import org.neo4j.geoff.store.AdjacencyCache;
+import org.neo4j.graphdb.Direction;
+
+import static org.junit.Assert.*;
+
+public class AdjacencyCacheTest {
+
+	private static AdjacencyCache.Adjacency adjacency(long... pairs) {
+		AdjacencyCache.Adjacency adjacency = new AdjacencyCache.Adjacency();
+		for (int i = 0; i < pairs.length; i += 2) {
+			adjacency.add(pairs[i], pairs[i + 1]);
+		}
+		return adjacency;
+	}
+
+	@Test
+	public void canTrackCreatedAndDeletedRelationships() {
+		AdjacencyCache cache = new AdjacencyCache(100);
+		cache.put(1, Direction.OUTGOING, "KNOWS", adjacency(10, 2));
+		cache.put(1, Direction.OUTGOING, null, adjacency(10, 2));
+		cache.relationshipCreated(11, 1, 3, "KNOWS");
+		cache.relationshipCreated(12, 1, 4, "LIKES");
+		assertEquals(2, cache.get(1, Direction.OUTGOING, "KNOWS").size());
+		assertEquals(3, cache.get(1, Direction.OUTGOING, null).size());
+		assertNull(cache.get(3, Direction.INCOMING, "KNOWS"));
+		cache.relationshipDeleted(10, 1, 2, "KNOWS");
+		AdjacencyCache.Adjacency knows = cache.get(1, Direction.OUTGOING, "KNOWS");
+		assertEquals(1, knows.size());
+		assertEquals(11, knows.relationship(0));
+		assertEquals(3, knows.otherNode(0));
+	}
+
+	@Test
+	public void canEvictLeastRecentlyUsed() {
+		AdjacencyCache cache = new AdjacencyCache(3);
+		cache.put(1, Direction.OUTGOING, null, adjacency(10, 2, 11, 3));
+		cache.put(2, Direction.INCOMING, null, adjacency(10, 1));
+		cache.get(1, Direction.OUTGOING, null);
+		cache.put(3, Direction.INCOMING, null, adjacency(11, 1));
+		assertNotNull(cache.get(1, Direction.OUTGOING, null));
+		assertNull(cache.get(2, Direction.INCOMING, null));
+		assertNotNull(cache.get(3, Direction.INCOMING, null));
+	}
+
+	@Test
+	public void disabledCacheHoldsNothing() {
+		AdjacencyCache cache = new AdjacencyCache(0);
+		assertFalse(cache.isEnabled());
+		cache.put(1, Direction.OUTGOING, null, adjacency(10, 2));
+		assertNull(cache.get(1, Direction.OUTGOING, null));
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.geoff.store.EntityStore;
+import org.neo4j.geoff.store.NodeToken;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class EntityStoreTest {
+
+	private ImpermanentGraphDatabase db;
+	private Transaction tx;
+
+	@Before
+	public void setUp() {
+		db = new ImpermanentGraphDatabase();
+		tx = db.beginTx();
+	}
+
+	@After
+	public void tearDown() {
+		tx.close();
+		db.shutdown();
+	}
+
+	@Test
+	public void canNumberSetInIdOrder() {
+		Node[] nodes = new Node[] {db.createNode(), db.createNode(), db.createNode()};
+		EntityStore<NodeToken, Node> store = EntityStore.forNodes(db);
+		assertTrue(store.put(new NodeToken("A"), new HashSet<Node>(Arrays.asList(nodes[2], nodes[0], nodes[1]))));
+		assertFalse(store.put(new NodeToken("A"), nodes[0]));
+		Map<String, Node> map = store.toMap();
+		assertEquals(3, map.size());
+		assertEquals(nodes[0], map.get("A.1"));
+		assertEquals(nodes[1], map.get("A.2"));
+		assertEquals(nodes[2], map.get("A.3"));
+		assertEquals(nodes[1], store.get(new NodeToken("A.2")).iterator().next());
+		Set<Node> all = store.get(new NodeToken("A"));
+		assertEquals(3, all.size());
+		assertTrue(all.contains(nodes[2]));
+		assertFalse(all.contains("A"));
+	}
+
+	@Test
+	public void canPutAndRemoveSlots() {
+		Node first = db.createNode();
+		Node second = db.createNode();
+		EntityStore<NodeToken, Node> store = EntityStore.forNodes(db);
+		assertTrue(store.put(new NodeToken("A.3"), second));
+		assertTrue(store.put(new NodeToken("A.1"), first));
+		assertFalse(store.put(new NodeToken("A.3"), first));
+		assertTrue(store.contains(new NodeToken("A")));
+		assertFalse(store.contains(new NodeToken("A.2")));
+		assertEquals(2, store.get(new NodeToken("A")).size());
+		assertEquals(second, store.remove(new NodeToken("A.3")).iterator().next());
+		assertFalse(store.contains(new NodeToken("A.3")));
+		assertEquals(first, store.toMap().get("A.1"));
+		assertEquals(1, store.remove(new NodeToken("A")).size());
+		assertFalse(store.contains(new NodeToken("A")));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void cannotModifyView() {
+		Node node = db.createNode();
+		EntityStore<NodeToken, Node> store = EntityStore.forNodes(db);
+		store.put(new NodeToken("A"), node);
+		store.get(new NodeToken("A")).clear();
+	}
+
+	@Test
+	public void canSpillBeyondHeapBudget() {
+		EntityStore<NodeToken, Node> store = EntityStore.forNodes(db);
+		store.setHeapBudget(2, null);
+		Node[] nodes = new Node[10];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = db.createNode();
+			assertTrue(store.put(new NodeToken("N" + i), nodes[i]));
+		}
+		assertFalse(store.put(new NodeToken("N9"), nodes[0]));
+		assertEquals(8, store.spilledSize());
+		assertTrue(store.contains(new NodeToken("N5")));
+		assertTrue(store.contains(new NodeToken("N5.1")));
+		assertFalse(store.contains(new NodeToken("N5.2")));
+		assertEquals(nodes[5], store.get(new NodeToken("N5")).iterator().next());
+		assertTrue(store.put(new NodeToken("N6.2"), nodes[0]));
+		assertEquals(7, store.spilledSize());
+		assertEquals(nodes[6], store.toMap().get("N6.1"));
+		assertEquals(nodes[7], store.remove(new NodeToken("N7")).iterator().next());
+		assertFalse(store.contains(new NodeToken("N7")));
+		assertEquals(10, store.toMap().size());
+		store.clear();
+		assertEquals(0, store.spilledSize());
+	}
+
+	@Test
+	public void canResetToMark() {
+		EntityStore<NodeToken, Node> store = EntityStore.forNodes(db);
+		store.setHeapBudget(2, null);
+		Node[] nodes = new Node[6];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = db.createNode();
+		}
+		for (int i = 0; i < 4; i++) {
+			assertTrue(store.put(new NodeToken("N" + i), nodes[i]));
+		}
+		assertEquals(2, store.spilledSize());
+		store.mark();
+		assertTrue(store.put(new NodeToken("N0.2"), nodes[4]));
+		assertTrue(store.put(new NodeToken("N3.2"), nodes[5]));
+		assertEquals(nodes[2], store.remove(new NodeToken("N2")).iterator().next());
+		assertTrue(store.put(new NodeToken("N4"), nodes[4]));
+		store.reset();
+		Map<String, Node> map = store.toMap();
+		assertEquals(4, map.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(nodes[i], map.get("N" + i));
+		}
+		assertFalse(store.contains(new NodeToken("N4")));
+		assertEquals(1, store.remove(new NodeToken("N1")).size());
+		store.reset();
+		assertEquals(nodes[1], store.get(new NodeToken("N1")).iterator().next());
+		store.unmark();
+		store.remove(new NodeToken("N1"));
+		assertFalse(store.contains(new NodeToken("N1")));
+	}
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.geoff.store.NameDictionary;
+import org.neo4j.geoff.util.IdArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NameDictionaryTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("geoff-dictionary", ".tmp");
+		assertTrue(file.delete());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static HashMap<String, Long> ids(Object... pairs) {
+		HashMap<String, Long> ids = new HashMap<String, Long>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			ids.put((String) pairs[i], ((Number) pairs[i + 1]).longValue());
+		}
+		return ids;
+	}
+
+	@Test
+	public void canReopenDictionary() throws IOException {
+		NameDictionary dictionary = NameDictionary.open(file);
+		dictionary.record(ids("A", 1, "B", 2), ids("R", 7), Collections.<String>emptyList(), Collections.<String>emptyList(), new IdArray(), new IdArray());
+		dictionary.record(ids("A", 3), ids(), Collections.singletonList("B"), Collections.singletonList("R"), new IdArray(), new IdArray());
+		dictionary.close();
+		dictionary = NameDictionary.open(file);
+		try {
+			assertEquals(3, dictionary.nodeId("A"));
+			assertEquals(-1, dictionary.nodeId("B"));
+			assertEquals(-1, dictionary.relationshipId("R"));
+			assertEquals(1, dictionary.nodeCount());
+			assertEquals(0, dictionary.relationshipCount());
+		} finally {
+			dictionary.close();
+		}
+	}
+
+	@Test
+	public void canDiscardIncompleteRecord() throws IOException {
+		NameDictionary dictionary = NameDictionary.open(file);
+		dictionary.record(ids("A", 1), ids(), Collections.<String>emptyList(), Collections.<String>emptyList(), new IdArray(), new IdArray());
+		dictionary.record(ids("Bob", 2), ids(), Collections.<String>emptyList(), Collections.<String>emptyList(), new IdArray(), new IdArray());
+		dictionary.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		} finally {
+			raf.close();
+		}
+		dictionary = NameDictionary.open(file);
+		try {
+			assertEquals(1, dictionary.nodeCount());
+			assertEquals(1, dictionary.nodeId("A"));
+			dictionary.record(ids("C", 5), ids(), Collections.<String>emptyList(), Collections.<String>emptyList(), new IdArray(), new IdArray());
+		} finally {
+			dictionary.close();
+		}
+		dictionary = NameDictionary.open(file);
+		try {
+			assertEquals(5, dictionary.nodeId("C"));
+			assertEquals(2, dictionary.nodeCount());
+		} finally {
+			dictionary.close();
+		}
+	}
+
+	private static IdArray idArray(long... ids) {
+		IdArray array = new IdArray(ids.length);
+		for (long id : ids) {
+			array.add(id);
+		}
+		return array;
+	}
+
+	@Test
+	public void canForgetNamesOfDeletedEntities() throws IOException {
+		NameDictionary dictionary = NameDictionary.open(file);
+		List<String> none = Collections.emptyList();
+		dictionary.record(ids("A", 1, "B", 2), ids("R", 7), none, none, new IdArray(), new IdArray());
+		dictionary.record(ids(), ids(), none, none, idArray(1), idArray(7));
+		assertEquals(-1, dictionary.nodeId("A"));
+		assertEquals(-1, dictionary.relationshipId("R"));
+		// the ID is reused by a node which is given the name again
+		dictionary.record(ids("A", 1), ids(), none, none, new IdArray(), new IdArray());
+		dictionary.record(ids("C", 3), ids(), none, none, idArray(3), new IdArray());
+		dictionary.close();
+		dictionary = NameDictionary.open(file);
+		try {
+			assertEquals(1, dictionary.nodeId("A"));
+			assertEquals(2, dictionary.nodeId("B"));
+			assertEquals(-1, dictionary.nodeId("C"));
+			assertEquals(-1, dictionary.relationshipId("R"));
+		} finally {
+			dictionary.close();
+		}
+	}
+
+	@Test
+	public void canCompactOnOpen() throws IOException {
+		NameDictionary dictionary = NameDictionary.open(file);
+		List<String> none = Collections.emptyList();
+		HashMap<String, Long> first = new HashMap<String, Long>();
+		HashMap<String, Long> second = new HashMap<String, Long>();
+		for (int i = 0; i < 5000; i++) {
+			first.put("N" + i, (long) i);
+			second.put("N" + i, (long) i + 5000);
+		}
+		dictionary.record(first, ids(), none, none, new IdArray(), new IdArray());
+		dictionary.record(second, ids(), none, none, idArray(5000), new IdArray());
+		dictionary.close();
+		long length = file.length();
+		dictionary = NameDictionary.open(file);
+		try {
+			assertTrue(file.length() < length / 2);
+			assertEquals(4999, dictionary.nodeCount());
+			assertEquals(-1, dictionary.nodeId("N0"));
+			assertEquals(9999, dictionary.nodeId("N4999"));
+			dictionary.record(ids("N0", 1), ids(), none, none, new IdArray(), new IdArray());
+		} finally {
+			dictionary.close();
+		}
+		dictionary = NameDictionary.open(file);
+		try {
+			assertEquals(1, dictionary.nodeId("N0"));
+			assertEquals(5000, dictionary.nodeCount());
+		} finally {
+			dictionary.close();
+		}
+	}
+
+}
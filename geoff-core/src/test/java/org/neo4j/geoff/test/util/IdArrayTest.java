@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test.util;
+
+import org.junit.Test;
+import org.neo4j.geoff.util.IdArray;
+
+import static org.junit.Assert.*;
+
+public class IdArrayTest {
+
+	@Test
+	public void canSortAndDeduplicateIds() {
+		IdArray array = new IdArray(2);
+		array.add(12);
+		array.add(3);
+		array.add(7);
+		array.add(3);
+		assertEquals(3, array.size());
+		assertEquals(3, array.get(0));
+		assertEquals(7, array.get(1));
+		assertEquals(12, array.get(2));
+		assertTrue(array.contains(7));
+		assertFalse(array.contains(8));
+		assertArrayEquals(new long[] {3, 7, 12}, array.toArray());
+	}
+
+	@Test
+	public void canMergeArrays() {
+		IdArray array = new IdArray();
+		array.add(5);
+		IdArray other = new IdArray();
+		other.add(5);
+		other.add(1);
+		array.addAll(other);
+		assertArrayEquals(new long[] {1, 5}, array.toArray());
+	}
+
+	@Test
+	public void canRemoveIds() {
+		IdArray array = new IdArray();
+		array.add(9);
+		array.add(4);
+		array.add(6);
+		assertTrue(array.remove(6));
+		assertFalse(array.remove(6));
+		assertArrayEquals(new long[] {4, 9}, array.toArray());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void cannotReadBeyondEnd() {
+		IdArray array = new IdArray();
+		array.add(1);
+		array.get(1);
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.geoff.test.util;
+
+import org.junit.Test;
+import org.neo4j.geoff.util.MappedIdMap;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class MappedIdMapTest {
+
+	@Test
+	public void canHoldManyKeys() {
+		MappedIdMap map = new MappedIdMap(null);
+		try {
+			for (int i = 0; i < 20000; i++) {
+				assertTrue(map.put("n" + i, i * 3L));
+			}
+			assertFalse(map.put("n7", 0));
+			assertEquals(20000, map.size());
+			assertEquals(21L, map.get("n7"));
+			assertEquals(59997L, map.get("n19999"));
+			assertEquals(-1L, map.get("n20000"));
+			assertEquals(21L, map.remove("n7"));
+			assertFalse(map.containsKey("n7"));
+			assertEquals(-1L, map.remove("n7"));
+			assertTrue(map.put("n7", 8));
+			assertEquals(8L, map.get("n7"));
+			HashSet<String> keys = new HashSet<String>();
+			Iterator<String> iterator = map.keys();
+			while (iterator.hasNext()) {
+				keys.add(iterator.next());
+			}
+			assertEquals(20000, keys.size());
+			assertTrue(keys.contains("n19999"));
+		} finally {
+			map.close();
+		}
+	}
+
+	@Test
+	public void canHoldUnicodeKeys() {
+		MappedIdMap map = new MappedIdMap(null);
+		try {
+			assertTrue(map.put("Zoë", 1));
+			assertTrue(map.put("Zoe", 2));
+			assertEquals(1L, map.get("Zoë"));
+			assertEquals(2L, map.get("Zoe"));
+		} finally {
+			map.close();
+		}
+	}
+
+}
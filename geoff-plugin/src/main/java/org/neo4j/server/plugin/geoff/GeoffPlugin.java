@@ -20,18 +20,32 @@
 package org.neo4j.server.plugin.geoff;
 
 import org.neo4j.geoff.Geoff;
+import org.neo4j.geoff.GroupCommitExecutor;
 import org.neo4j.geoff.Subgraph;
 import org.neo4j.geoff.except.SubgraphError;
 import org.neo4j.geoff.except.SyntaxError;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
 import org.neo4j.server.plugins.*;
 import org.neo4j.server.rest.repr.Representation;
 
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 @Description("Plugin to handle Geoff data insertion and emits")
 public class GeoffPlugin extends ServerPlugin {
 
+	// window within which concurrent grouped merges share a transaction
+	static final long GROUP_COMMIT_WINDOW_MILLIS = 5;
+	static final int GROUP_COMMIT_MAX_SIZE = 100;
+
+	// each executor is dropped when its database shuts down, which stops it too
+	final Map<GraphDatabaseService, GroupCommitExecutor> executors =
+		new IdentityHashMap<GraphDatabaseService, GroupCommitExecutor>();
+
 	@Name("merge")
 	@Description("Merge Geoff subgraph into the database from a list of rule strings")
 	@PluginTarget(GraphDatabaseService.class)
@@ -40,12 +54,25 @@ public class GeoffPlugin extends ServerPlugin {
 			@Description("Geoff subgraph to merge")
 			@Parameter(name = "subgraph", optional = false) String[] subgraph,
 			@Description("Named entity references to pass into merge routine")
-			@Parameter(name = "params", optional = true) Map params
+			@Parameter(name = "params", optional = true) Map params,
+			@Description("Share a transaction with other merges arriving at the same time")
+			@Parameter(name = "group_commit", optional = true) Boolean groupCommit,
+			@Description("Names of the entities to return, all if omitted or none if empty")
+			@Parameter(name = "output", optional = true) String[] output
 	)
 	throws SubgraphError, SyntaxError
 	{
+		if (groupCommit != null && groupCommit) {
+			return new GeoffResultRepresentation(
+				executorFor(graphDB).merge(
+					new Subgraph(subgraph), GeoffParams.toEntities(params, graphDB), outputNames(output)
+				)
+			);
+		}
 		return new GeoffResultRepresentation(
-			Geoff.mergeIntoNeo4j(new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB))
+			Geoff.mergeIntoNeo4j(
+				new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB), outputNames(output)
+			)
 		);
 	}
 
@@ -57,12 +84,16 @@ public class GeoffPlugin extends ServerPlugin {
 		@Description("Geoff subgraph to insert")
 		@Parameter(name = "subgraph", optional = false) String[] subgraph,
 		@Description("Named entity references to pass into insert routine")
-		@Parameter(name = "params", optional = true) Map params
+		@Parameter(name = "params", optional = true) Map params,
+		@Description("Names of the entities to return, all if omitted or none if empty")
+		@Parameter(name = "output", optional = true) String[] output
 	)
 	throws SubgraphError, SyntaxError
 	{
 		return new GeoffResultRepresentation(
-			Geoff.insertIntoNeo4j(new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB))
+			Geoff.insertIntoNeo4j(
+				new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB), outputNames(output)
+			)
 		);
 	}
 
@@ -74,13 +105,55 @@ public class GeoffPlugin extends ServerPlugin {
 		@Description("Geoff subgraph to delete")
 		@Parameter(name = "subgraph", optional = false) String[] subgraph,
 		@Description("Named entity references to pass into delete routine")
-		@Parameter(name = "params", optional = true) Map params
+		@Parameter(name = "params", optional = true) Map params,
+		@Description("Names of the entities to return, all if omitted or none if empty")
+		@Parameter(name = "output", optional = true) String[] output
 	)
 	throws SubgraphError, SyntaxError
 	{
 		return new GeoffResultRepresentation(
-			Geoff.deleteFromNeo4j(new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB))
+			Geoff.deleteFromNeo4j(
+				new Subgraph(subgraph), graphDB, GeoffParams.toEntities(params, graphDB), outputNames(output)
+			)
 		);
 	}
 
+	private static List<String> outputNames(String[] output) {
+		return output == null ? null : Arrays.asList(output);
+	}
+
+	private synchronized GroupCommitExecutor executorFor(final GraphDatabaseService graphDB) {
+		GroupCommitExecutor executor = this.executors.get(graphDB);
+		if (executor == null) {
+			executor = new GroupCommitExecutor(graphDB, GROUP_COMMIT_WINDOW_MILLIS, GROUP_COMMIT_MAX_SIZE);
+			this.executors.put(graphDB, executor);
+			graphDB.registerKernelEventHandler(new KernelEventHandler() {
+
+				@Override
+				public void beforeShutdown() {
+					removeExecutor(graphDB);
+				}
+
+				@Override
+				public void kernelPanic(ErrorState error) { }
+
+				@Override
+				public Object getResource() {
+					return null;
+				}
+
+				@Override
+				public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+					return ExecutionOrder.DOESNT_MATTER;
+				}
+
+			});
+		}
+		return executor;
+	}
+
+	private synchronized void removeExecutor(GraphDatabaseService graphDB) {
+		this.executors.remove(graphDB);
+	}
+
 }
@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class GeoffPluginTest implements GraphHolder {
 
@@ -73,10 +74,20 @@ public class GeoffPluginTest implements GraphHolder {
         Node i = data.get().get("I");
         //Representation result = testQuery( JSON.toObject( "{\"(Joe)\":{\"name\":\"Joe\"}}" ) );
         List<String> rules = JSON.toListOfStrings("[\"(Joe) {\\\"name\\\":\\\"Joe\\\"}\"]");
-        plugin.insert(db, rules.toArray(new String[rules.size()]), null);
+        plugin.insert(db, rules.toArray(new String[rules.size()]), null, null);
         expectNodes(1);
     }
 
+    @Test
+    public void groupCommitExecutorIsDroppedWithItsDatabase() throws Exception {
+        ImpermanentGraphDatabase graphDB = new ImpermanentGraphDatabase();
+        List<String> rules = JSON.toListOfStrings("[\"(Joe) {\\\"name\\\":\\\"Joe\\\"}\"]");
+        plugin.merge(graphDB, rules.toArray(new String[rules.size()]), null, true, null);
+        assertTrue(plugin.executors.containsKey(graphDB));
+        graphDB.shutdown();
+        assertTrue(plugin.executors.isEmpty());
+    }
+
     private void expectNodes(int i) {
         Transaction tx = db.beginTx();
         try {